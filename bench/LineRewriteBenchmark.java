@@ -0,0 +1,211 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Micro benchmarks of the per-line work of {@code TexProcess}: the decoration of a single line, which runs the
+ * rewrite rules of chapters, sections, subsections, figures and tikz libraries, and the helpers it calls. Each line
+ * mix is measured separately, since a rule which is cheap on plain prose may be expensive on long CJK lines.
+ * <p>
+ * Run it from the repository root:
+ * <pre>
+ * javac -encoding UTF-8 -d out src/*.java bench/*.java
+ * java -Dfile.encoding=UTF-8 -cp out LineRewriteBenchmark
+ * </pre>
+ * The count of lines in a batch is set by {@code bench.lines} (default 20000), see {@link MicroBenchmark} for the
+ * other options.
+ */
+final class LineRewriteBenchmark {
+    private static final int LINES = Integer.getInteger("bench.lines", 20000);
+    private static final int FIGURES = 40;
+    private static final String[] PROSE = {
+            "Let $f(x)$ be a function defined on the interval $[a,b]$, then $f$ is bounded if it is continuous.",
+            "By the mean value theorem there exists $\\xi\\in(a,b)$ such that $f(b)-f(a)=f'(\\xi)(b-a)$.",
+            "\\begin{equation}",
+            "\\int_a^b f(x)\\,\\mathrm{d}x=\\lim_{\\lambda\\to 0}\\sum_{i=1}^n f(\\xi_i)\\Delta x_i",
+            "\\end{equation}",
+            "\\textbf{Proof.} Suppose the contrary, then there is a sequence $\\{x_n\\}$ which does not converge.",
+    };
+    private static final String CJK_SENTENCE = "设函数$f(x)$在闭区间$[a,b]$上连续，在开区间$(a,b)$内可导，"
+            + "则在$(a,b)$内至少存在一点$\\xi$，使得$f(b)-f(a)=f'(\\xi)(b-a)$成立。";
+    private static final String[] SECTIONS = {
+            "\\section{极限}", "\\section{导数}", "\\section{定积分}", "\\section{微分中值定理}",
+            "\\subsection{数列极限}", "\\subsection{函数的连续性}", "\\subsection{泰勒公式}",
+    };
+
+    private LineRewriteBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path book = Files.createTempDirectory("tex-bench");
+        try {
+            run(book.toFile());
+        } finally {
+            deleteRecursively(book);
+        }
+    }
+
+    private static void run(File book) throws Exception {
+        File mainFile = new File(book, "main.tex");
+        File figureFolder = new File(book, "fig");
+        File partFolder = new File(book, "parts");
+        File headerFile = new File(partFolder, "header.tex");
+        List<String> figureNames = createBook(mainFile, figureFolder, headerFile);
+        List<File> partFolders = new ArrayList<>();
+        for (String name : new String[]{"Differential-01", "Integral-02", "Series-03", "UnCategorized"}) {
+            partFolders.add(new File(partFolder, name));
+        }
+        TexProcess texProcess = new TexProcess(Collections.emptyList(), mainFile, figureFolder, headerFile,
+                partFolders);
+        texProcess.indexFigures();
+        TexProcess.DecorateContext context = new TexProcess.DecorateContext(new File(partFolders.get(0),
+                "Differential-01-bench-trim.tex"), Logger.getLog());
+        BufferedWriter writer = new BufferedWriter(new NullWriter());
+
+        Random random = new Random(42);
+        Map<String, String[]> mixes = new LinkedHashMap<>();
+        mixes.put("prose", lines(() -> PROSE[random.nextInt(PROSE.length)]));
+        mixes.put("cjk", lines(() -> cjkLine(random)));
+        mixes.put("section", lines(() -> SECTIONS[random.nextInt(SECTIONS.length)]));
+        mixes.put("figure", lines(() -> figureLine(random, figureNames)));
+        mixes.put("mixed", lines(() -> mixedLine(random, figureNames)));
+
+        MicroBenchmark.printHeader();
+        for (Map.Entry<String, String[]> mix : mixes.entrySet()) {
+            String[] lines = mix.getValue();
+            MicroBenchmark.run("writeDecoratedLine." + mix.getKey(), lines.length, () -> {
+                for (int i = 0; i < lines.length; i++) {
+                    String line = lines[i];
+                    texProcess.writeDecoratedLine(writer, line, TexLineKind.classify(line), i + 1, context);
+                }
+                writer.flush();
+                return lines.length;
+            });
+        }
+        String[] titles = new String[LINES];
+        String[] paths = new String[LINES];
+        int[] sizes = new int[LINES];
+        String[] absolutePaths = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            String section = SECTIONS[random.nextInt(SECTIONS.length)];
+            titles[i] = section.substring(section.indexOf('{') + 1, section.length() - 1);
+            paths[i] = "fig-" + random.nextInt(FIGURES) + ".pdf" + "}}}".substring(random.nextInt(3));
+            sizes[i] = 100 + random.nextInt(300);
+            absolutePaths[i] = new File(figureFolder, "size" + sizes[i] + File.separator + "fig-" + i + ".pdf")
+                    .getAbsolutePath();
+        }
+        MicroBenchmark.run("decorateSection", LINES, () -> {
+            long result = 0;
+            for (String title : titles) result += texProcess.decorateSection(title).length();
+            return result;
+        });
+        MicroBenchmark.run("countEndingBraces", LINES, () -> {
+            long result = 0;
+            for (String path : paths) result += texProcess.countEndingBraces(path);
+            return result;
+        });
+        MicroBenchmark.run("getWidth", LINES, () -> {
+            long result = 0;
+            for (int size : sizes) result += texProcess.getWidth(size).length();
+            return result;
+        });
+        MicroBenchmark.run("modifyPath", LINES, () -> {
+            long result = 0;
+            for (String path : absolutePaths) result += texProcess.modifyPath(path).length();
+            return result;
+        });
+    }
+
+    /**
+     * Create the main file, the header file and the figures which the figure lines refer to.
+     *
+     * @return names of the figures
+     */
+    private static List<String> createBook(File mainFile, File figureFolder, File headerFile) throws IOException {
+        headerFile.getParentFile().mkdirs();
+        Files.write(mainFile.toPath(), "\\begin{document}\n%!!!ContentStart\n%!!!ContentEnd\n\\end{document}\n"
+                .getBytes("UTF-8"));
+        Files.write(headerFile.toPath(), "% header\n".getBytes("UTF-8"));
+        List<String> figureNames = new ArrayList<>();
+        for (int i = 0; i < FIGURES; i++) {
+            File sizeFolder = new File(figureFolder, "size" + (100 + i % 4 * 100));
+            sizeFolder.mkdirs();
+            String name = "fig-" + i + ".pdf";
+            Files.write(new File(sizeFolder, name).toPath(), new byte[0]);
+            figureNames.add(name);
+        }
+        return figureNames;
+    }
+
+    private static String[] lines(LineSupplier supplier) {
+        String[] lines = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = supplier.next();
+        }
+        return lines;
+    }
+
+    private static String cjkLine(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int sentences = 2 + random.nextInt(4);
+        for (int i = 0; i < sentences; i++) {
+            sb.append(CJK_SENTENCE);
+        }
+        return sb.toString();
+    }
+
+    private static String figureLine(Random random, List<String> figureNames) {
+        String name = figureNames.get(random.nextInt(figureNames.size()));
+        switch (random.nextInt(3)) {
+            case 0:
+                return "\\includegraphics[width=5cm]{fig/" + name + "}";
+            case 1:
+                return "    \\includegraphics[height = 3.5cm]{" + name + "}}";
+            default:
+                return "\\includegraphics[width=0.4\\textwidth]{./fig/size100/" + name + "}}\\hfill";
+        }
+    }
+
+    /**
+     * A line of a typical chapter: mostly prose, a half of which is CJK, with some section and figure lines and a
+     * few lines which input other files or tikz libraries.
+     */
+    private static String mixedLine(Random random, List<String> figureNames) {
+        int dice = random.nextInt(100);
+        if (dice < 40) return PROSE[random.nextInt(PROSE.length)];
+        if (dice < 80) return cjkLine(random);
+        if (dice < 88) return SECTIONS[random.nextInt(SECTIONS.length)];
+        if (dice < 95) return figureLine(random, figureNames);
+        if (dice < 98) return "\\input{exercise-" + random.nextInt(10) + "}";
+        return "\\usetikzlibrary{arrows, calc}";
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private interface LineSupplier {
+        String next();
+    }
+
+    /**
+     * A writer which drops everything, so that only the decoration itself is measured.
+     */
+    private static final class NullWriter extends Writer {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
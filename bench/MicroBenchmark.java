@@ -0,0 +1,100 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A small harness for micro benchmarks, which needs nothing but the JDK. Every benchmark runs a batch of operations
+ * per iteration: the warm up iterations let the JIT compile the code, then the measured iterations report the
+ * throughput and the bytes allocated per operation. The allocation is measured by the HotSpot thread allocation
+ * counter, it is reported as {@code n/a} on the platforms without such counter.
+ * <p>
+ * The harness is configured by system properties:
+ * {@code bench.warmup} (warm up iterations, default 5), {@code bench.iterations} (measured iterations, default 10)
+ * and {@code bench.filter} (regular expression, only the benchmarks whose name contains a match are run).
+ */
+final class MicroBenchmark {
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 5);
+    private static final int MEASURED_ITERATIONS = Integer.getInteger("bench.iterations", 10);
+    private static final Pattern FILTER = Pattern.compile(System.getProperty("bench.filter", ""));
+    private static volatile long sink;
+
+    /**
+     * A batch of operations measured as a whole.
+     */
+    interface Batch {
+        /**
+         * Run the batch once.
+         *
+         * @return any value computed from the results, which is consumed so that the work can not be eliminated
+         * @throws Exception if the operations fail, which aborts the benchmark
+         */
+        long run() throws Exception;
+    }
+
+    private MicroBenchmark() {
+    }
+
+    /**
+     * Print the header of the result table.
+     */
+    static void printHeader() {
+        System.out.println(String.format(Locale.ROOT, "%-36s%16s%10s%12s%12s",
+                "Benchmark", "ops/s", "± %", "ns/op", "B/op"));
+    }
+
+    /**
+     * Run a benchmark and print its result, unless it is filtered out.
+     *
+     * @param name       name of the benchmark
+     * @param operations count of operations in a batch
+     * @param batch      the batch
+     * @throws Exception if the batch fails
+     */
+    static void run(String name, int operations, Batch batch) throws Exception {
+        if (!FILTER.matcher(name).find()) return;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += batch.run();
+        }
+        double[] throughputs = new double[MEASURED_ITERATIONS];
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long startBytes = allocatedBytes();
+            long startNanos = System.nanoTime();
+            sink += batch.run();
+            long nanos = System.nanoTime() - startNanos;
+            long bytes = allocatedBytes() - startBytes;
+            throughputs[i] = operations * 1e9 / nanos;
+            totalNanos += nanos;
+            totalBytes += bytes;
+        }
+        double mean = 0;
+        for (double throughput : throughputs) mean += throughput;
+        mean /= throughputs.length;
+        double variance = 0;
+        for (double throughput : throughputs) variance += (throughput - mean) * (throughput - mean);
+        double error = throughputs.length > 1 ? Math.sqrt(variance / (throughputs.length - 1)) / mean * 100 : 0;
+        long totalOperations = (long) operations * MEASURED_ITERATIONS;
+        String bytesPerOperation = allocatedBytes() < 0 ? "n/a"
+                : String.format(Locale.ROOT, "%.1f", (double) totalBytes / totalOperations);
+        System.out.println(String.format(Locale.ROOT, "%-36s%16.0f%10.1f%12.1f%12s", name, mean, error,
+                (double) totalNanos / totalOperations, bytesPerOperation));
+    }
+
+    /**
+     * Query the bytes allocated by the current thread so far.
+     *
+     * @return allocated bytes, or -1 if the platform can not tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotSpotBean = (com.sun.management.ThreadMXBean) bean;
+            if (hotSpotBean.isThreadAllocatedMemorySupported() && hotSpotBean.isThreadAllocatedMemoryEnabled()) {
+                return hotSpotBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
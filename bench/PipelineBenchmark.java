@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * End to end benchmark of the pipeline on synthetic books of growing size. For every size a fresh book is generated
+ * by {@link SyntheticBookGenerator}, then the figures are arranged by {@code AsyFileArrange}, the raw files are merged
+ * by {@code TexProcess} and the figure list is generated by {@code FigureListGenerator}, each of which is reported
+ * with its wall time, throughput and peak heap usage. The figure folder is walked once before the arrangement and
+ * the merge, which share the snapshot as a run does, the walk is reported as a phase of its own.
+ * <p>
+ * Run it from the repository root:
+ * <pre>
+ * javac -encoding UTF-8 -d out src/*.java bench/*.java
+ * java -Dfile.encoding=UTF-8 -Djava.awt.headless=true -Xmx4g -cp out PipelineBenchmark
+ * </pre>
+ * Options are given by system properties: {@code bench.figures} (comma separated counts of figures, default
+ * {@code 100,1000,10000,100000}), {@code bench.figuresPerFile} (figures referred by a raw file, default 20),
+ * {@code bench.parallelism} (worker threads of the merge, default the count of processors) and
+ * {@code bench.keep} (keep the generated books).
+ */
+final class PipelineBenchmark {
+    private static final String FIGURE_COUNTS = System.getProperty("bench.figures", "100,1000,10000,100000");
+    private static final int FIGURES_PER_FILE = Integer.getInteger("bench.figuresPerFile", 20);
+    private static final int PARALLELISM = Integer.getInteger("bench.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    private static final boolean KEEP = Boolean.getBoolean("bench.keep");
+
+    private PipelineBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format(Locale.ROOT, "%10s%10s  %-14s%12s%14s%14s",
+                "Figures", "Files", "Phase", "Time(ms)", "Files/s", "Peak heap(MB)"));
+        for (String count : FIGURE_COUNTS.split(",")) {
+            int figureCount = Integer.parseInt(count.trim());
+            int rawFileCount = Math.max(3, figureCount / Math.max(1, FIGURES_PER_FILE));
+            Path book = Files.createTempDirectory("tex-book-" + figureCount + "-");
+            try {
+                run(book.toFile(), rawFileCount, figureCount);
+            } finally {
+                if (KEEP) {
+                    System.out.println("Book kept in " + book);
+                } else {
+                    deleteRecursively(book);
+                }
+            }
+        }
+    }
+
+    private static void run(File book, int rawFileCount, int figureCount) throws IOException {
+        List<File> rawFiles = new SyntheticBookGenerator(book, rawFileCount, figureCount, 42).generate();
+        File mainFile = new File(book, SyntheticBookGenerator.MAIN_FILE_NAME);
+        File figureFolder = new File(book, SyntheticBookGenerator.FIGURE_FOLDER_NAME);
+        File partFolder = new File(book, "parts");
+        List<File> partFolders = new ArrayList<>();
+        for (String name : new String[]{"Differential-01", "Integral-02", "Series-03", "UnCategorized"}) {
+            partFolders.add(new File(partFolder, name));
+        }
+
+        startPhase();
+        long startNanos = System.nanoTime();
+        FigureFolderSnapshot snapshot = FigureFolderSnapshot.take(figureFolder);
+        report(figureCount, rawFileCount, "figure walk", System.nanoTime() - startNanos, figureCount);
+
+        startPhase();
+        startNanos = System.nanoTime();
+        AsyFileArrange arrange = new AsyFileArrange(figureFolder);
+        arrange.setSnapshot(snapshot);
+        arrange.arrangeAsyFiles();
+        report(figureCount, rawFileCount, "arrange", System.nanoTime() - startNanos, figureCount);
+
+        startPhase();
+        startNanos = System.nanoTime();
+        TexProcess texProcess = new TexProcess(rawFiles, mainFile, figureFolder, new File(partFolder, "header.tex"),
+                partFolders);
+        texProcess.setParallelism(PARALLELISM);
+        texProcess.setFigureSnapshot(snapshot);
+        texProcess.process();
+        report(figureCount, rawFileCount, "merge", System.nanoTime() - startNanos, rawFileCount);
+        if (texProcess.getWarningCount() != 0) {
+            System.out.println("WARNING--the merge reported " + texProcess.getWarningCount() + " warning(s)");
+        }
+
+        startPhase();
+        startNanos = System.nanoTime();
+        new FigureListGenerator(new File(book, "figurelist.tex"), figureFolder, false, false).generateFigureList();
+        report(figureCount, rawFileCount, "figure list", System.nanoTime() - startNanos, figureCount);
+    }
+
+    /**
+     * Collect the garbage of the last phase and reset the peak usage of the heap.
+     */
+    private static void startPhase() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static void report(int figureCount, int rawFileCount, String phase, long nanos, int files) {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+        }
+        System.out.println(String.format(Locale.ROOT, "%10d%10d  %-14s%12.1f%14.1f%14.1f", figureCount,
+                rawFileCount, phase, nanos / 1e6, files * 1e9 / nanos, peakHeap / 1024.0 / 1024.0));
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generate a synthetic book laid out like the real ones, so that the whole pipeline could be measured at any scale:
+ * <ul>
+ * <li>the main file {@code main.tex} with the content markers,</li>
+ * <li>the {@code parts} folder with {@code header.tex},</li>
+ * <li>the raw tex files {@code Differential-xx}, {@code Integral-xx} and {@code Series-xx} in the {@code raw}
+ * folder, each with a title, sections, subsections, prose and {@code includegraphics} lines,</li>
+ * <li>the figure folder {@code fig} with asy files carrying {@code size(NNN);} lines and their pdf files. Most of
+ * them lie directly in the figure folder waiting to be arranged, the others lie in a size folder, some of which is
+ * the wrong one.</li>
+ * </ul>
+ * The content is decided by the seed only, so two books generated with the same arguments are identical.
+ * <p>
+ * Usage: {@code java SyntheticBookGenerator <folder> <raw files> <figures> [seed]}
+ */
+final class SyntheticBookGenerator {
+    static final String MAIN_FILE_NAME = "main.tex";
+    static final String FIGURE_FOLDER_NAME = "fig";
+    static final String RAW_FOLDER_NAME = "raw";
+    private static final String[] PARTS = {"Differential", "Integral", "Series"};
+    private static final int[] SIZES = {100, 150, 200, 250, 300, 400};
+    private static final String[] SECTION_TITLES = {"极限", "导数", "定积分", "微分中值定理", "级数的收敛"};
+    private static final String PROSE = "Let $f(x)$ be a function defined on $[a,b]$, then $f$ is bounded if it is "
+            + "continuous, and the integral $\\int_a^b f(x)\\,\\mathrm{d}x$ exists.";
+    private static final String CJK_PROSE = "设函数$f(x)$在闭区间$[a,b]$上连续，在开区间$(a,b)$内可导，"
+            + "则在$(a,b)$内至少存在一点$\\xi$，使得$f(b)-f(a)=f'(\\xi)(b-a)$成立。";
+    private final File root;
+    private final int rawFileCount;
+    private final int figureCount;
+    private final Random random;
+
+    /**
+     * @param root         the folder of the book, created if it does not exist
+     * @param rawFileCount count of raw tex files
+     * @param figureCount  count of figures, each of which is referred by one of the raw files
+     * @param seed         seed of the content
+     */
+    SyntheticBookGenerator(File root, int rawFileCount, int figureCount, long seed) {
+        this.root = root;
+        this.rawFileCount = Math.max(1, rawFileCount);
+        this.figureCount = figureCount;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: java SyntheticBookGenerator <folder> <raw files> <figures> [seed]");
+            System.exit(3);
+        }
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        SyntheticBookGenerator generator = new SyntheticBookGenerator(new File(args[0]), Integer.parseInt(args[1]),
+                Integer.parseInt(args[2]), seed);
+        List<File> rawFiles = generator.generate();
+        System.out.println("Generated " + rawFiles.size() + " raw files and " + args[2] + " figures in " + args[0]);
+    }
+
+    /**
+     * Generate the book.
+     *
+     * @return the raw tex files
+     * @throws IOException if a file can not be written
+     */
+    List<File> generate() throws IOException {
+        File partFolder = new File(root, "parts");
+        File figureFolder = new File(root, FIGURE_FOLDER_NAME);
+        File rawFolder = new File(root, RAW_FOLDER_NAME);
+        mkdirs(partFolder);
+        mkdirs(figureFolder);
+        mkdirs(rawFolder);
+        write(new File(root, MAIN_FILE_NAME), "\\documentclass{ctexbook}\n\\input{parts/header.tex}\n"
+                + "\\begin{document}\n%!!!ContentStart\n%!!!ContentEnd\n\\printindex\n\\end{document}\n");
+        write(new File(partFolder, "header.tex"), "\\usepackage{graphicx}\n\\usepackage{makeidx}\n\\makeindex\n");
+        List<String> figureNames = generateFigures(figureFolder);
+        List<File> rawFiles = new ArrayList<>();
+        int figureIndex = 0;
+        for (int i = 0; i < rawFileCount; i++) {
+            String part = PARTS[i % PARTS.length];
+            // spread the figures evenly, every figure is referred exactly once
+            int figuresOfFile = figureCount / rawFileCount + (i < figureCount % rawFileCount ? 1 : 0);
+            File rawFile = new File(rawFolder, String.format("%s-%02d-chapter%d.tex", part, i / PARTS.length % 100, i));
+            write(rawFile, generateRawFile(i, figureNames.subList(figureIndex, figureIndex + figuresOfFile)));
+            figureIndex += figuresOfFile;
+            rawFiles.add(rawFile);
+        }
+        return rawFiles;
+    }
+
+    /**
+     * Write the asy files and their pdf files. Three of four figures lie directly in the figure folder, the rest lie in
+     * a size folder, which is the wrong one for one of ten of them.
+     *
+     * @return names of the pdf files
+     */
+    private List<String> generateFigures(File figureFolder) throws IOException {
+        List<String> names = new ArrayList<>(figureCount);
+        for (int i = 0; i < figureCount; i++) {
+            int size = SIZES[random.nextInt(SIZES.length)];
+            File folder = figureFolder;
+            if (i % 4 == 3) {
+                int folderSize = i % 40 == 3 ? SIZES[(indexOf(size) + 1) % SIZES.length] : size;
+                folder = new File(figureFolder, "size" + folderSize);
+                mkdirs(folder);
+            }
+            String name = "figure" + i;
+            write(new File(folder, name + ".asy"), "import graph;\nsize(" + size + ");\n"
+                    + "draw((0,0)--(" + random.nextInt(10) + "," + random.nextInt(10) + "));\n");
+            write(new File(folder, name + ".pdf"), "%PDF-1.4\n");
+            names.add(name + ".pdf");
+        }
+        return names;
+    }
+
+    private String generateRawFile(int index, List<String> figureNames) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\\documentclass{ctexart}\n\\usepackage{graphicx}\n\\usetikzlibrary{arrows, calc}\n");
+        sb.append("\\title{第").append(index + 1).append("讲\\,").append(SECTION_TITLES[index % SECTION_TITLES.length])
+                .append("}\n\\begin{document}\n\\maketitle\n");
+        int sections = 2 + random.nextInt(3);
+        int figureIndex = 0;
+        for (int section = 0; section < sections; section++) {
+            sb.append("\\section{").append(SECTION_TITLES[random.nextInt(SECTION_TITLES.length)]).append("}\n");
+            sb.append("\\subsection{").append(SECTION_TITLES[random.nextInt(SECTION_TITLES.length)]).append("}\n");
+            int paragraphs = 3 + random.nextInt(5);
+            for (int paragraph = 0; paragraph < paragraphs; paragraph++) {
+                sb.append(random.nextBoolean() ? PROSE : CJK_PROSE).append("\n\n");
+            }
+            // the figures are shared by the sections, the last section takes the rest
+            int figures = section == sections - 1 ? figureNames.size() - figureIndex
+                    : Math.min(figureNames.size() - figureIndex, figureNames.size() / sections);
+            for (int i = 0; i < figures; i++) {
+                sb.append("\\begin{figure}\n\\centering\n\\includegraphics[width=5cm]{fig/")
+                        .append(figureNames.get(figureIndex++)).append("}\n\\end{figure}\n");
+            }
+        }
+        sb.append("\\end{document}\n");
+        return sb.toString();
+    }
+
+    private static int indexOf(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (SIZES[i] == size) return i;
+        }
+        return -1;
+    }
+
+    private static void mkdirs(File folder) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Can not create folder: " + folder);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
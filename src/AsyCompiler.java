@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Build the stale figures of the figure folder: an asy file whose pdf file is missing or older than the asy file is
+ * compiled by the {@code asy} executable in its own folder, so that the pdf file is written next to it.
+ * <p>
+ * The figures are compiled on a pool of worker threads, one process per figure, see {@link ProcessRunner}. The output
+ * of a process is kept in memory and written to the log when the figure is done, the log of each figure is output as
+ * a whole. A process which runs longer than the timeout is killed with the processes it started, and the figure is
+ * taken as failed.
+ * <p>
+ * The executable is {@code asy} on the path by default, which could be changed by {@code setExecutable} or the
+ * system property {@code asy.executable}, the timeout in seconds by the system property {@code asy.timeout}
+ * (default 120). At most {@code asy.parallelism} figures are compiled at the same time, the count of processors by
+ * default.
+ */
+final class AsyCompiler {
+    private static final long TIMEOUT_SECONDS = Math.max(1, Long.getLong("asy.timeout", 120));
+    private final File figureFolder;
+    private final Logger log;
+    private String executable = resolve(System.getProperty("asy.executable", "asy"));
+    private final int parallelism = Math.max(1, Integer.getInteger("asy.parallelism",
+            Runtime.getRuntime().availableProcessors()));
+    private FigureFolderSnapshot snapshot;
+    private RunStatistics statistics = new RunStatistics();
+
+    AsyCompiler(File figureFolder) {
+        this.figureFolder = figureFolder;
+        this.log = Logger.getLog();
+    }
+
+    /**
+     * Set the path of the asy executable.
+     *
+     * @param executable path or name of the executable
+     */
+    void setExecutable(String executable) {
+        this.executable = resolve(executable);
+    }
+
+    /**
+     * A path of executable is made absolute, since the figures are compiled in their own folders. A name without
+     * folder is left to be found on the path.
+     */
+    private static String resolve(String executable) {
+        return executable.indexOf('/') != -1 || executable.indexOf(File.separatorChar) != -1
+                ? new File(executable).getAbsolutePath() : executable;
+    }
+
+    /**
+     * Share the snapshot of the figure folder with the other steps of the run. The pdf files written by the
+     * compilation are applied to the snapshot.
+     *
+     * @param snapshot snapshot of the figure folder
+     */
+    void setSnapshot(FigureFolderSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Set the statistics which the compiled figures are recorded to.
+     *
+     * @param statistics statistics of the current run
+     */
+    void setStatistics(RunStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Find the stale figures and compile them. When the build is cancelled, the figures being compiled are killed,
+     * those not started yet are skipped, and the build stops by a {@code CancellationException}.
+     *
+     * @return count of figures which could not be compiled
+     */
+    int compileStaleFigures() {
+        log.println("============================================Figure build start============================================");
+        long startNanos = System.nanoTime();
+        if (snapshot == null) snapshot = FigureFolderSnapshot.take(figureFolder);
+        List<FigureFolderSnapshot.Entry> staleFigures = new ArrayList<>();
+        findStaleFigures(figureFolder, staleFigures);
+        if (staleFigures.isEmpty()) {
+            log.println(Logger.LOW, "All the figures are up to date.");
+            return 0;
+        }
+        log.println(Logger.LOW, "{} figure(s) to compile.", staleFigures.size());
+        // the largest figures are compiled first, so that no worker is left with a big figure at the end
+        staleFigures.sort(Comparator.comparingLong(FigureFolderSnapshot.Entry::length).reversed());
+        AtomicInteger failures = new AtomicInteger();
+        AtomicBoolean unavailable = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, staleFigures.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (FigureFolderSnapshot.Entry asyEntry : staleFigures) {
+                futures.add(executor.submit(() -> {
+                    // a figure which has not been started when the build is cancelled is skipped
+                    if (Thread.currentThread().isInterrupted()) return;
+                    Logger figureLog = log.buffered();
+                    try {
+                        if (unavailable.get() || !compile(asyEntry.getFile(), figureLog, unavailable)) {
+                            failures.incrementAndGet();
+                        }
+                    } finally {
+                        figureLog.flush();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.printStackTrace(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            log.println("Figure build has been terminated.");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        statistics.phase("figures").stop(startNanos);
+        Cancellation.check();
+        log.println(Logger.LOW, "{} figure(s) compiled, {} failed.", staleFigures.size() - failures.get(),
+                failures.get());
+        return failures.get();
+    }
+
+    /**
+     * Find the asy files in a folder and its sub folders, whose pdf file is missing or older than the asy file.
+     */
+    private void findStaleFigures(File folder, List<FigureFolderSnapshot.Entry> staleFigures) {
+        List<FigureFolderSnapshot.Entry> entries = snapshot.list(folder);
+        if (entries == null) return;
+        for (FigureFolderSnapshot.Entry entry : entries) {
+            if (entry.isDirectory()) {
+                findStaleFigures(entry.getFile(), staleFigures);
+            } else if (entry.getName().endsWith(".asy")) {
+                FigureFolderSnapshot.Entry pdfEntry = snapshot.get(getPdfFile(entry.getFile()));
+                if (pdfEntry == null || pdfEntry.lastModified() < entry.lastModified()) staleFigures.add(entry);
+            }
+        }
+    }
+
+    private File getPdfFile(File asyFile) {
+        String name = asyFile.getName();
+        return new File(asyFile.getParentFile(), name.substring(0, name.length() - ".asy".length()) + ".pdf");
+    }
+
+    /**
+     * Compile a figure in its folder.
+     *
+     * @param asyFile     the asy file
+     * @param log         logger of the figure
+     * @param unavailable set if the executable could not be run at all
+     * @return {@code true} if the pdf file has been written
+     */
+    private boolean compile(File asyFile, Logger log, AtomicBoolean unavailable) {
+        long startNanos = System.nanoTime();
+        // the times of files may be kept in seconds
+        long startMillis = System.currentTimeMillis() / 1000 * 1000;
+        File pdfFile = getPdfFile(asyFile);
+        List<String> output = Collections.synchronizedList(new ArrayList<>());
+        ProcessRunner runner = new ProcessRunner(executable, "-f", "pdf", asyFile.getName());
+        runner.setDirectory(asyFile.getAbsoluteFile().getParentFile());
+        runner.setTimeout(TIMEOUT_SECONDS);
+        runner.setOutput(output::add);
+        boolean succeeded = false;
+        try {
+            ProcessRunner.Result result = runner.run();
+            if (result.getStatus() != ProcessRunner.Status.EXITED) {
+                log.println(Logger.LOW, "WARNING--figure: {} is not compiled in time, the compilation is killed.",
+                        asyFile);
+            } else if (result.getExitValue() != 0 || !pdfFile.exists()) {
+                log.println(Logger.LOW, "WARNING--figure: {} could not be compiled, exit value: {}", asyFile,
+                        result.getExitValue());
+            } else {
+                succeeded = true;
+                if (Logger.isEnabled(Logger.MEDIUM)) {
+                    log.println(Logger.MEDIUM, "Figure: {} compiled in {} ms.", asyFile,
+                            (System.nanoTime() - startNanos) / 1000000);
+                }
+            }
+            int level = succeeded ? Logger.HIGH : Logger.LOW;
+            for (String line : output) {
+                log.println(line, level);
+            }
+        } catch (IOException e) {
+            if (!unavailable.getAndSet(true)) {
+                log.println(Logger.LOW, "Can not run asy executable: {}, no figure will be compiled. ({})",
+                        executable, e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            log.println(Logger.LOW, "Figure: {} has been terminated.", asyFile);
+            Thread.currentThread().interrupt();
+            // a pdf file written by the killed process could be incomplete, the figure is compiled again next run
+            if (pdfFile.lastModified() >= startMillis && !pdfFile.delete()) {
+                log.println(Logger.LOW, "WARNING--figure: {} may be incomplete, delete it to compile it again.",
+                        pdfFile);
+            }
+        } finally {
+            snapshot.refreshed(pdfFile);
+            statistics.phase("figures").record(asyFile.length(), 0, succeeded ? 0 : 1);
+        }
+        return succeeded;
+    }
+}
@@ -1,16 +1,34 @@
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 class AsyFileArrange {
     private static final SimpleDateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    /**
+     * Count of bytes at the beginning of an asy file which are searched for the size line, set by the system property
+     * {@code asy.headerWindow}. A size line beyond the window is not found.
+     */
+    private static final int HEADER_WINDOW = Math.max(64, Integer.getInteger("asy.headerWindow", 64 * 1024));
+    private static final ThreadLocal<byte[]> HEADER_BUFFER = ThreadLocal.withInitial(() -> new byte[HEADER_WINDOW]);
+    private static final Pattern SIZE_FOLDER_PATTERN = Pattern.compile("^size([\\d]+)$");
+    private static final byte[] SIZE_PREFIX = "size(".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SIZE_SUFFIX = ");".getBytes(StandardCharsets.US_ASCII);
+    // same-name files whose content differs from the kept one are removed only if asked explicitly
+    private static final boolean REMOVE_DIFFERENT = Boolean.getBoolean("duplicates.removeDifferent");
     private final Logger log;
     private File figureFolder;
+    private RunStatistics statistics = new RunStatistics();
+    private FigureFolderSnapshot snapshot;
+    // the result of the last scan for duplicates, by name and by content
+    private Map<String, List<FigureFolderSnapshot.Entry>> sameNameGroups;
+    private List<List<FigureFolderSnapshot.Entry>> sameContentGroups;
+    private Map<File, String> contentHashes;
 
     AsyFileArrange(File figureFolder) {
         this.figureFolder = figureFolder;
@@ -18,218 +36,394 @@ class AsyFileArrange {
     }
 
     /**
-     * Start the arrangement of asy files and the corresponding pdf files.
+     * Share the snapshot of the figure folder with the other steps of the run. The moves and deletions made by the
+     * arrangement are applied to the snapshot.
+     *
+     * @param snapshot snapshot of the figure folder
+     */
+    void setSnapshot(FigureFolderSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    private FigureFolderSnapshot getSnapshot() {
+        if (snapshot == null) snapshot = FigureFolderSnapshot.take(figureFolder);
+        return snapshot;
+    }
+
+    /**
+     * Set the statistics which the asy files read by the arrangement are recorded to.
+     *
+     * @param statistics statistics of the current run
+     */
+    void setStatistics(RunStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Start the arrangement of asy files and the corresponding pdf files. The moves left by an interrupted arrangement
+     * are finished first, then all the moves of this run are planned and done through a {@link MoveJournal}.
      */
     public void arrangeAsyFiles() {
         log.println("============================================Arrange start============================================");
+        MoveJournal journal = new MoveJournal(figureFolder, getSnapshot());
+        journal.recover();
         ArrayList<File> asyFileList = new ArrayList<>();
         ArrayList<File> folderList = new ArrayList<>();
-        try {
-            for (File file : figureFolder.listFiles()) {
-                if (file.getName().endsWith(".asy")) asyFileList.add(file);
-                if (file.isDirectory() && file.getName().matches("^size([\\d]+)$")) {
-                    folderList.add(file);
-                }
+        List<FigureFolderSnapshot.Entry> entries = getSnapshot().list(figureFolder);
+        if (entries == null) {
+            log.println(Logger.LOW, "Figure folder: {}does not exist.", figureFolder.getName());
+            return;
+        }
+        for (FigureFolderSnapshot.Entry entry : entries) {
+            if (entry.getName().endsWith(".asy")) asyFileList.add(entry.getFile());
+            if (entry.isDirectory() && SIZE_FOLDER_PATTERN.matcher(entry.getName()).matches()) {
+                folderList.add(entry.getFile());
             }
-            correctionFiles(folderList);
-            moveAsyFiles(categorizeAsyFiles(asyFileList));
-        } catch (NullPointerException e) {
-            log.println("Figure folder: " + figureFolder.getName() + "does not exist.");
+        }
+        List<MoveJournal.Move> moves = correctionFiles(folderList);
+        moves.addAll(planMoves(categorizeAsyFiles(asyFileList)));
+        int failures = journal.moveAll(moves);
+        if (Logger.isEnabled(Logger.MEDIUM)) {
+            log.println(Logger.MEDIUM, "Arrange: {} file(s) moved, {} failed.", moves.size() - failures, failures);
         }
     }
 
+    /**
+     * Remove the asy files with the same name, only the last modified one of each name is kept, together with the pdf
+     * files of the removed ones. Only the files with the same content as the kept one are removed by default, a file
+     * whose content differs is kept with a warning, since it could be a different figure. It is removed as well only if
+     * the system property {@code duplicates.removeDifferent} is set. The files with the same content and different
+     * names are never removed, since the tex files refer to the figures by their names.
+     */
     void removeDuplicatedFilesByLastModified() {
-        Map<String, List<File>> duplicated = getDuplicateFiles();
+        Map<String, List<FigureFolderSnapshot.Entry>> duplicated = getDuplicateFiles();
         for (String filename : duplicated.keySet()) {
-            TreeMap<Long, List<File>> sorted = new TreeMap<>();
-            for (File asyFile : duplicated.get(filename)) {
-                if (sorted.containsKey(asyFile.lastModified())) {
-                    sorted.get(asyFile.lastModified()).add(asyFile);
-                } else {
-                    List<File> list = new ArrayList<>();
-                    list.add(asyFile);
-                    sorted.put(asyFile.lastModified(), list);
-                }
+            Cancellation.check();
+            TreeMap<Long, List<FigureFolderSnapshot.Entry>> sorted = new TreeMap<>();
+            for (FigureFolderSnapshot.Entry asyEntry : duplicated.get(filename)) {
+                sorted.computeIfAbsent(asyEntry.lastModified(), key -> new ArrayList<>()).add(asyEntry);
             }
-            System.out.println(sorted);
-            File preserved = sorted.get(sorted.lastKey()).get(0);
-            for (List<File> list : sorted.values()) {
-                for (File asyFile : list) {
-                    if (asyFile == preserved) continue;
+            FigureFolderSnapshot.Entry preserved = sorted.get(sorted.lastKey()).get(0);
+            for (List<FigureFolderSnapshot.Entry> list : sorted.values()) {
+                for (FigureFolderSnapshot.Entry asyEntry : list) {
+                    if (asyEntry == preserved) continue;
+                    File asyFile = asyEntry.getFile();
+                    if (!isSameContent(asyEntry, preserved)) {
+                        if (!REMOVE_DIFFERENT) {
+                            log.println(Logger.LOW, "WARNING--Duplicated file: {} differs from {}, it has been kept.",
+                                    asyFile, preserved.getFile());
+                            continue;
+                        }
+                        log.println(Logger.LOW, "WARNING--Duplicated file: {} differs from {}, which is kept.",
+                                asyFile, preserved.getFile());
+                    }
                     File pdfFile = new File(asyFile.getAbsolutePath().replace(".asy", ".pdf"));
                     if (asyFile.delete()) {
-                        log.println("Duplicated file: " + asyFile.getPath() + " (last modified: "
-                                + FORMAT.format(new Date(asyFile.lastModified())) + ") has been deleted.");
+                        getSnapshot().deleted(asyFile);
+                        log.println(Logger.LOW, "Duplicated file: {} (last modified: {}) has been deleted.", asyFile,
+                                FORMAT.format(new Date(asyEntry.lastModified())));
                     } else {
-                        log.println("Sorry, an error occurred which causes the duplicated file: " + asyFile.getPath()
-                                + "(last modified: " + FORMAT.format(new Date(asyFile.lastModified()))
-                                + ") is not successfully deleted.");
+                        log.println(Logger.LOW, "Sorry, an error occurred which causes the duplicated file: {}"
+                                        + "(last modified: {}) is not successfully deleted.", asyFile,
+                                FORMAT.format(new Date(asyEntry.lastModified())));
                     }
-                    if (pdfFile.exists() && pdfFile.delete()) {
-                        log.println("PDF file associated: " + pdfFile.getPath() + " has been deleted.");
+                    if (getSnapshot().exists(pdfFile) && pdfFile.delete()) {
+                        getSnapshot().deleted(pdfFile);
+                        log.println(Logger.LOW, "PDF file associated: {} has been deleted.", pdfFile);
                     } else {
-                        log.println("Sorry, an error occurred which causes the duplicated file: " + pdfFile.getPath()
-                                + "is not successfully deleted or the pdf file does not exist.");
+                        log.println(Logger.LOW, "Sorry, an error occurred which causes the duplicated file: {}"
+                                + "is not successfully deleted or the pdf file does not exist.", pdfFile);
                     }
                 }
             }
         }
+        // the files have changed, the next listing scans again
+        sameNameGroups = null;
+        sameContentGroups = null;
     }
 
     /**
-     * List duplicated asy files in log, return true if there are duplicated files, otherwise return false.
+     * List duplicated asy files in log: the files with the same name, each group told whether their contents are the
+     * same, and the files with the same content under different names.
      *
-     * @return true if there are duplicates, false if not.
+     * @return true if there are files with the same name, which could be removed by
+     * {@link #removeDuplicatedFilesByLastModified()}, false if not.
      */
     boolean listDuplicateFiles() {
-        Map<String, List<File>> duplicated = getDuplicateFiles();
-        if (duplicated.isEmpty()) {
+        Map<String, List<FigureFolderSnapshot.Entry>> duplicated = getDuplicateFiles();
+        List<List<FigureFolderSnapshot.Entry>> sameContent = getSameContentFiles();
+        if (duplicated.isEmpty() && sameContent.isEmpty()) {
             log.println("No duplicated files.");
         } else {
             log.println("Duplicated files detected: ");
             for (String filename : duplicated.keySet()) {
-                log.println("Filename: " + filename);
-                int count = 1;
-                for (File file : duplicated.get(filename)) {
-                    log.println("\t" + count + ". " + file.getPath() + ", last modified date: "
-                            + FORMAT.format(new Date(file.lastModified())));
-                    count++;
+                List<FigureFolderSnapshot.Entry> entries = duplicated.get(filename);
+                boolean identical = true;
+                for (FigureFolderSnapshot.Entry entry : entries) {
+                    identical &= isSameContent(entry, entries.get(0));
                 }
+                log.println(Logger.LOW, "Filename: {} ({})", filename, identical ? "same content" : "different content");
+                logEntries(entries);
+            }
+            for (List<FigureFolderSnapshot.Entry> entries : sameContent) {
+                log.println(Logger.LOW, "Same content: {} files of {} bytes", entries.size(), entries.get(0).length());
+                logEntries(entries);
             }
         }
         return !duplicated.isEmpty();
     }
 
-    private Map<String, List<File>> getDuplicateFiles() {
-        Map<String, List<File>> duplicated = new HashMap<>();
-        getDuplicateFilesCore(figureFolder, duplicated);
-        Iterator<String> iterator = duplicated.keySet().iterator();
-        while (iterator.hasNext()) {
-            List<File> list = duplicated.get(iterator.next());
-            if (list.size() <= 1) iterator.remove();
+    private void logEntries(List<FigureFolderSnapshot.Entry> entries) {
+        int count = 1;
+        for (FigureFolderSnapshot.Entry entry : entries) {
+            log.println(Logger.LOW, "\t{}. {}, last modified date: {}", count, entry,
+                    FORMAT.format(new Date(entry.lastModified())));
+            count++;
+        }
+    }
+
+    private Map<String, List<FigureFolderSnapshot.Entry>> getDuplicateFiles() {
+        if (sameNameGroups == null) findDuplicates();
+        return sameNameGroups;
+    }
+
+    private List<List<FigureFolderSnapshot.Entry>> getSameContentFiles() {
+        if (sameContentGroups == null) findDuplicates();
+        return sameContentGroups;
+    }
+
+    /**
+     * Scan the asy files for the files with the same name and the files with the same content. Only the files which
+     * share their length with another file could have the same content, so the files are bucketed by the length from
+     * the snapshot first, and only the files in a bucket of more than one are hashed, in parallel.
+     */
+    private void findDuplicates() {
+        List<FigureFolderSnapshot.Entry> asyEntries = new ArrayList<>();
+        getDuplicateFilesCore(figureFolder, asyEntries);
+        Map<String, List<FigureFolderSnapshot.Entry>> byName = new TreeMap<>();
+        Map<Long, List<FigureFolderSnapshot.Entry>> byLength = new HashMap<>();
+        for (FigureFolderSnapshot.Entry entry : asyEntries) {
+            byName.computeIfAbsent(entry.getName(), key -> new ArrayList<>()).add(entry);
+            byLength.computeIfAbsent(entry.length(), key -> new ArrayList<>()).add(entry);
+        }
+        byName.values().removeIf(list -> list.size() <= 1);
+        List<FigureFolderSnapshot.Entry> candidates = new ArrayList<>();
+        for (FigureFolderSnapshot.Entry entry : asyEntries) {
+            if (byLength.get(entry.length()).size() > 1) candidates.add(entry);
+        }
+        List<String> hashes = candidates.parallelStream().map(this::hashContent).collect(Collectors.toList());
+        contentHashes = new HashMap<>();
+        Map<String, List<FigureFolderSnapshot.Entry>> byHash = new LinkedHashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            String hash = hashes.get(i);
+            if (hash == null) continue;
+            contentHashes.put(candidates.get(i).getFile(), hash);
+            byHash.computeIfAbsent(hash, key -> new ArrayList<>()).add(candidates.get(i));
+        }
+        List<List<FigureFolderSnapshot.Entry>> sameContent = new ArrayList<>();
+        for (List<FigureFolderSnapshot.Entry> list : byHash.values()) {
+            // a group of the same name only is listed as such
+            Set<String> names = new HashSet<>();
+            for (FigureFolderSnapshot.Entry entry : list) {
+                names.add(entry.getName());
+            }
+            if (names.size() > 1) sameContent.add(list);
+        }
+        sameNameGroups = byName;
+        sameContentGroups = sameContent;
+        if (Logger.isEnabled(Logger.MEDIUM)) {
+            log.println(Logger.MEDIUM, "Duplicates: {} asy file(s), {} hashed, {} name group(s), {} content group(s).",
+                    asyEntries.size(), candidates.size(), byName.size(), sameContent.size());
+        }
+    }
+
+    /**
+     * @return {@code true} if the two files are known to have the same content, files of different lengths are never
+     * the same, and a file which could not be hashed is taken as different
+     */
+    private boolean isSameContent(FigureFolderSnapshot.Entry a, FigureFolderSnapshot.Entry b) {
+        if (a == b) return true;
+        if (a.length() != b.length()) return false;
+        String hash = contentHashes.get(a.getFile());
+        return hash != null && hash.equals(contentHashes.get(b.getFile()));
+    }
+
+    private String hashContent(FigureFolderSnapshot.Entry entry) {
+        Cancellation.check();
+        try {
+            String hash = Digests.hash(entry.getFile());
+            statistics.phase("duplicates").record(entry.length(), 0, 0);
+            return hash;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+            statistics.phase("duplicates").record(0, 0, 1);
+            return null;
         }
-        return duplicated;
     }
 
-    private void getDuplicateFilesCore(File folder, Map<String, List<File>> duplicated) {
-        for (File file : folder.listFiles()) {
-            if (file.isDirectory() && file.getName().matches("^size([\\d]+)$")) {
-                getDuplicateFilesCore(file, duplicated);
+    private void getDuplicateFilesCore(File folder, List<FigureFolderSnapshot.Entry> asyEntries) {
+        List<FigureFolderSnapshot.Entry> entries = getSnapshot().list(folder);
+        if (entries == null) return;
+        for (FigureFolderSnapshot.Entry entry : entries) {
+            if (entry.isDirectory() && SIZE_FOLDER_PATTERN.matcher(entry.getName()).matches()) {
+                getDuplicateFilesCore(entry.getFile(), asyEntries);
             }
             // only process asy files.
-            else if (file.getName().endsWith(".asy")) {
-                if (duplicated.containsKey(file.getName())) {
-                    duplicated.get(file.getName()).add(file);
-                } else {
-                    List<File> fileList = new ArrayList<>();
-                    fileList.add(file);
-                    duplicated.put(file.getName(), fileList);
-                }
+            else if (entry.getName().endsWith(".asy")) {
+                asyEntries.add(entry);
             }
         }
     }
 
     /**
-     * Traversal all the folder with correct folder name, move every asy file in each of them to the right folder.
+     * Traversal all the folder with correct folder name, plan the moves of every asy file in each of them to the right
+     * folder.
      *
      * @param folderList a list of asy file folders
+     * @return the moves of the files in wrong folders
      */
-    private void correctionFiles(List<File> folderList) {
+    private List<MoveJournal.Move> correctionFiles(List<File> folderList) {
+        List<MoveJournal.Move> moves = new ArrayList<>();
         for (File folder : folderList) {
+            Cancellation.check();
             List<File> asyFileList = new ArrayList<>();
-            for (File file : folder.listFiles()) {
-                if (file.getName().endsWith(".asy")) asyFileList.add(file);
+            for (FigureFolderSnapshot.Entry entry : getSnapshot().list(folder)) {
+                if (entry.getName().endsWith(".asy")) asyFileList.add(entry.getFile());
             }
             Map<String, List<File>> map = categorizeAsyFiles(asyFileList);
             if (map.size() >= 1) {
-                moveAsyFiles(map);
+                moves.addAll(planMoves(map));
             }
         }
+        return moves;
     }
 
     /**
-     * Move the asy files (and the pdf files with same file name) into the right folder, according to the map generated by
-     * method {@code categorizeAsyFiles}.
+     * Plan the moves of the asy files (and the pdf files with same file name) into the right folder, according to the
+     * map generated by method {@code categorizeAsyFiles}. A file which is in the right folder already is not moved.
      *
      * @param map a map of size and a list of asy file with certain size.
+     * @return the moves, the pdf file right after its asy file
      */
-    private void moveAsyFiles(Map<String, List<File>> map) {
-        boolean flag;
+    private List<MoveJournal.Move> planMoves(Map<String, List<File>> map) {
+        List<MoveJournal.Move> moves = new ArrayList<>();
         for (String size : map.keySet()) {
             File folder = new File(figureFolder.getPath() + File.separator + "size" + size);
-            // if the folder does not exist, create it.
-            if (!folder.exists()) {
-                folder.mkdir();
-            }
-            // folder exists now
             for (File file : map.get(size)) {
-                // move file to the corresponding folder
-                String newPath = folder + File.separator;
-                flag = file.renameTo(new File(newPath + file.getName()));
-                if (flag) {
-                    log.println("Moved file: " + file.getName() + " to: " + newPath, Logger.MEDIUM);
-                } else {
-                    log.println("Move file: " + file.getName() + " failed.", Logger.MEDIUM);
-                }
+                if (folder.getAbsoluteFile().equals(file.getAbsoluteFile().getParentFile())) continue;
+                moves.add(new MoveJournal.Move(file, new File(folder, file.getName())));
                 // move the pdf file (if exists) to the corresponding folder
                 String filename = file.getPath();
                 File pdfFile = new File(filename.substring(0, filename.length() - 3) + "pdf");
-                if (pdfFile.exists()) {
-                    flag = pdfFile.renameTo(new File(newPath + pdfFile.getName()));
-                    if (flag) {
-                        log.println("Moved file: " + pdfFile.getName() + " to: " + newPath, Logger.MEDIUM);
-                    }
+                if (getSnapshot().exists(pdfFile)) {
+                    moves.add(new MoveJournal.Move(pdfFile, new File(folder, pdfFile.getName())));
                 }
             }
         }
+        return moves;
     }
 
     /**
-     * Create a map from size to a list of files of that size.
+     * Create a map from size to a list of files of that size. The files are read in parallel, each of which is
+     * searched for the line {@code size(NNN);} in its header window only, see {@link #HEADER_WINDOW}. The results are
+     * merged into the map in the order of the list, so are the logs of the files without size information.
      *
      * @param asyFileList all the files need to categorize.
      * @return a categorized map
      */
     private Map<String, List<File>> categorizeAsyFiles(List<File> asyFileList) {
+        List<Header> headers = asyFileList.parallelStream().map(this::readSize).collect(Collectors.toList());
         Map<String, List<File>> map = new HashMap<>();
-        BufferedReader reader = null;
-        String lineContent;
-        String key;
-        for (File file : asyFileList) {
-            try {
-                reader = new BufferedReader(new FileReader(file));
-                boolean sizeFound = false;
-                while ((lineContent = reader.readLine()) != null) {
-                    Pattern pattern = Pattern.compile("^size\\(([\\d]+)\\);$");
-                    Matcher matcher = pattern.matcher(lineContent);
-                    if (matcher.find()) {
-                        sizeFound = true;
-                        key = matcher.group(1);
-                        if (!map.containsKey(key)) {
-                            ArrayList<File> files = new ArrayList<>();
-                            files.add(file);
-                            map.put(key, files);
-                        } else {
-                            map.get(key).add(file);
-                        }
-                        break;
-                    }
-                }
-                if (!sizeFound) {
-                    log.println("Asy file: " + file.getPath() + " does not contains size information. This file has been ignored.");
-                }
-            } catch (IOException e) {
-                log.printStackTrace(e);
-            } finally {
-                if (reader != null) {
-                    try {
-                        reader.close();
-                    } catch (IOException e) {
-                        log.printStackTrace(e);
-                    }
-                }
+        for (int i = 0; i < asyFileList.size(); i++) {
+            File file = asyFileList.get(i);
+            Header header = headers.get(i);
+            // a file which can not be read has been logged by readSize
+            if (header == null) continue;
+            if (header.size == null) {
+                log.println(Logger.LOW, "Asy file: {} does not contains size information. This file has been ignored.", file);
+            } else {
+                map.computeIfAbsent(header.size, key -> new ArrayList<>()).add(file);
             }
         }
         return map;
     }
+
+    /**
+     * Find the size of an asy file, which is given by a line {@code size(NNN);} in the header window of the file.
+     * The file is read as bytes into a buffer reused by the current thread, since the size line is pure ASCII and
+     * the bytes of line terminators never appear inside a character of the common encodings of asy files.
+     *
+     * @param file the asy file
+     * @return the header of the file, or {@code null} if the file can not be read
+     */
+    private Header readSize(File file) {
+        byte[] buffer = HEADER_BUFFER.get();
+        int length = 0;
+        boolean truncated = false;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int count;
+            while (length < buffer.length && (count = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += count;
+            }
+            truncated = length == buffer.length && in.read() != -1;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.printStackTrace(e);
+                }
+            }
+        }
+        String size = null;
+        int lineStart = 0;
+        for (int i = 0; i < length && size == null; i++) {
+            if (buffer[i] == '\n' || buffer[i] == '\r') {
+                size = parseSizeLine(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        // the last line counts only if it is not cut by the window
+        if (size == null && !truncated) size = parseSizeLine(buffer, lineStart, length);
+        statistics.phase("arrange").record(length, 0, size == null ? 1 : 0);
+        return new Header(size);
+    }
+
+    /**
+     * Parse a line as {@code ^size\(([\d]+)\);$} does.
+     *
+     * @return the digits of the size, or {@code null} if the line is not a size line
+     */
+    private static String parseSizeLine(byte[] buffer, int start, int end) {
+        int digitsStart = start + SIZE_PREFIX.length;
+        int digitsEnd = end - SIZE_SUFFIX.length;
+        if (digitsEnd <= digitsStart) return null;
+        for (int i = 0; i < SIZE_PREFIX.length; i++) {
+            if (buffer[start + i] != SIZE_PREFIX[i]) return null;
+        }
+        for (int i = 0; i < SIZE_SUFFIX.length; i++) {
+            if (buffer[digitsEnd + i] != SIZE_SUFFIX[i]) return null;
+        }
+        for (int i = digitsStart; i < digitsEnd; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9') return null;
+        }
+        return new String(buffer, digitsStart, digitsEnd - digitsStart, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The header window of an asy file which has been read.
+     */
+    private static final class Header {
+        // digits of the size, or null if there is no size line
+        private final String size;
+
+        private Header(String size) {
+            this.size = size;
+        }
+    }
 }
@@ -0,0 +1,51 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helpers to replace a file as a whole: the new content is written to a temporary file in the same folder, which
+ * is then renamed to the target. A reader never sees a half written target, even if the program is killed.
+ */
+final class AtomicFiles {
+    private AtomicFiles() {
+    }
+
+    /**
+     * Get the temporary file which the content of the target file should be written to.
+     *
+     * @param target the file to be replaced
+     * @return a hidden file in the same folder as target
+     */
+    static File tempFileFor(File target) {
+        return new File(target.getAbsoluteFile().getParentFile(), "." + target.getName() + ".tmp");
+    }
+
+    /**
+     * Replace the target file with the temporary file, atomically if the file system supports it.
+     *
+     * @param temp   the temporary file holding the new content
+     * @param target the file to be replaced
+     * @throws IOException if the temporary file can not be moved
+     */
+    static void replace(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Remove the temporary file left by a failed write.
+     *
+     * @param temp the temporary file
+     */
+    static void discard(File temp) {
+        if (temp.exists() && !temp.delete()) {
+            temp.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command line entry of the program, which runs the whole process without graphical interface: arrange the figure
+ * folder, remove the duplicated figures, compile the stale figures if asked, merge the tex files, compile the main file, generate the index and compile
+ * the main file again. The questions asked by dialogs in the graphical interface are answered by options.
+ * With {@code --watch} the program keeps running after that, and merges the changed files until it is killed.
+ * The exit value is 0 if everything succeeded, 1 if there are warnings, 2 if there are errors and 3 if the arguments
+ * are wrong.
+ * <p>
+ * Ctrl+C cancels the run at the next file boundary, the files done so far are kept and the next run goes on from
+ * them, see {@link Cancellation}. The program waits for the cancel at most {@code batch.cancelWaitSeconds} seconds
+ * (default 30).
+ */
+final class BatchTexProcessProgram {
+    static final int EXIT_SUCCESS = 0;
+    static final int EXIT_WARNINGS = 1;
+    static final int EXIT_ERRORS = 2;
+    static final int EXIT_USAGE = 3;
+    private static final long CANCEL_WAIT_SECONDS = Math.max(1, Long.getLong("batch.cancelWaitSeconds", 30));
+    private static final String USAGE = "Usage: java BatchTexProcessProgram [options] <tex file or glob>...\n"
+            + "Options:\n"
+            + "  --main <file>             main tex file (default: Calculus_lecture_HighDimension.tex)\n"
+            + "  --fig <folder>            figure folder (default: fig)\n"
+            + "  --no-arrange              do not arrange the figure folder\n"
+            + "  --no-duplicate-check      do not check duplicated figures\n"
+            + "  --remove-duplicates       remove duplicated figures of the same content, keep the last modified one\n"
+            + "  --build-figures           compile the asy files whose pdf file is missing or older\n"
+            + "  --asy <file>              asy executable used by --build-figures (default: asy)\n"
+            + "  --figure-list             write figurelist.tex with all the figures, compile it unless --no-compile\n"
+            + "  --figure-shards <n>       split the figure list by folder into shards of about n figures (0: one\n"
+            + "                            shard per folder), only the changed shards are written and compiled\n"
+            + "  --ignore-wrong-filenames  merge tex files whose name does not follow the naming rule\n"
+            + "  --no-sort                 merge tex files in the given order\n"
+            + "  --no-compile              merge only, do not compile the main file\n"
+            + "  --keep-aux                keep the aux files of the last compile, skip the passes not needed\n"
+            + "  --parts                   compile every part by its own driver instead of the whole book\n"
+            + "  --part-jobs <n>           parts or figure list shards compiled at the same time (default: count of\n"
+            + "                            processors)\n"
+            + "  --assemble                compile the whole book after the parts\n"
+            + "  --watch                   keep merging the changed files until the program is killed\n"
+            + "  --help                    print this message\n";
+    private final Logger log;
+    private String mainFilePath = "Calculus_lecture_HighDimension.tex";
+    private String figFolderPath = "fig";
+    private boolean needArrange = true;
+    private boolean deleteDuplicated = true;
+    private boolean removeDuplicated = false;
+    private boolean buildFigures = false;
+    private String asyExecutable = null;
+    private boolean figureList = false;
+    private int figureShardSize = -1;
+    private boolean ignoreWrongFilename = false;
+    private boolean sort = true;
+    private boolean compile = true;
+    private boolean keepAuxFiles = false;
+    private boolean compileParts = false;
+    private int partJobs = Runtime.getRuntime().availableProcessors();
+    private boolean assemble = false;
+    private boolean watch = false;
+    private List<String> inputPatterns = new ArrayList<>();
+    private int warningCount = 0;
+
+    private BatchTexProcessProgram() {
+        this.log = Logger.getLog();
+    }
+
+    public static void main(String[] args) {
+        Thread mainThread = Thread.currentThread();
+        CountDownLatch finished = new CountDownLatch(1);
+        // Ctrl+C cancels the run as the terminate button does, and waits for the checkpoint of the run to be saved
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            mainThread.interrupt();
+            try {
+                finished.await(CANCEL_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        int exitValue;
+        try {
+            exitValue = new BatchTexProcessProgram().run(args);
+        } finally {
+            finished.countDown();
+        }
+        System.exit(exitValue);
+    }
+
+    /**
+     * Run the whole process with the command line arguments.
+     *
+     * @param args command line arguments
+     * @return exit value
+     */
+    private int run(String[] args) {
+        log.setLogStream(System.out);
+        Logger.setLogLevel(Logger.LOW);
+        try {
+            if (!parseArguments(args)) {
+                System.out.print(USAGE);
+                return EXIT_SUCCESS;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return EXIT_USAGE;
+        }
+        ProcessFiles processFiles = new ProcessFiles(mainFilePath, figFolderPath, needArrange, deleteDuplicated);
+        if (!processFiles.ensureExistence()) return EXIT_ERRORS;
+        processFiles.setKeepAuxFiles(keepAuxFiles);
+        List<File> inputFiles = expandInputPatterns();
+        boolean compiled;
+        try {
+            processFiles.arrangeFigures(() -> removeDuplicated);
+            if (buildFigures) warningCount += processFiles.buildFigures(asyExecutable);
+            if (figureList) warningCount += processFiles.generateFigureList(figureShardSize, compile, partJobs);
+            warningCount += processFiles.merge(processFiles.filterInputFiles(inputFiles, ignoreWrongFilename, sort));
+            compiled = !compile || (compileParts ? processFiles.compileParts(partJobs, assemble)
+                    : processFiles.compile());
+        } catch (CancellationException e) {
+            log.println("Process has been terminated, the files done so far are kept for the next run.");
+            return EXIT_ERRORS;
+        } finally {
+            processFiles.report();
+        }
+        if (watch) {
+            processFiles.watch(() -> processFiles.filterInputFiles(expandInputPatterns(), ignoreWrongFilename, sort));
+        }
+        if (!compiled) return EXIT_ERRORS;
+        return warningCount == 0 ? EXIT_SUCCESS : EXIT_WARNINGS;
+    }
+
+    /**
+     * Parse the command line arguments into options.
+     *
+     * @param args command line arguments
+     * @return {@code false} if only the usage is asked
+     * @throws IllegalArgumentException if the arguments are wrong
+     */
+    private boolean parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--main":
+                    mainFilePath = requireValue(args, ++i, "--main");
+                    break;
+                case "--fig":
+                    figFolderPath = requireValue(args, ++i, "--fig");
+                    break;
+                case "--no-arrange":
+                    needArrange = false;
+                    break;
+                case "--no-duplicate-check":
+                    deleteDuplicated = false;
+                    break;
+                case "--remove-duplicates":
+                    removeDuplicated = true;
+                    break;
+                case "--build-figures":
+                    buildFigures = true;
+                    break;
+                case "--asy":
+                    asyExecutable = requireValue(args, ++i, "--asy");
+                    break;
+                case "--figure-list":
+                    figureList = true;
+                    break;
+                case "--figure-shards":
+                    figureList = true;
+                    figureShardSize = parseNonNegative(requireValue(args, ++i, "--figure-shards"), "--figure-shards");
+                    break;
+                case "--ignore-wrong-filenames":
+                    ignoreWrongFilename = true;
+                    break;
+                case "--no-sort":
+                    sort = false;
+                    break;
+                case "--no-compile":
+                    compile = false;
+                    break;
+                case "--keep-aux":
+                    keepAuxFiles = true;
+                    break;
+                case "--parts":
+                    compileParts = true;
+                    break;
+                case "--part-jobs":
+                    partJobs = parsePositive(requireValue(args, ++i, "--part-jobs"), "--part-jobs");
+                    break;
+                case "--assemble":
+                    assemble = true;
+                    break;
+                case "--watch":
+                    watch = true;
+                    break;
+                case "--help":
+                    return false;
+                default:
+                    if (args[i].startsWith("--")) throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    inputPatterns.add(args[i]);
+            }
+        }
+        return true;
+    }
+
+    private String requireValue(String[] args, int index, String option) {
+        if (index >= args.length) throw new IllegalArgumentException("Option " + option + " needs a value.");
+        return args[index];
+    }
+
+    private int parsePositive(String value, String option) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) return number;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Option " + option + " needs a positive number.");
+    }
+
+    private int parseNonNegative(String value, String option) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= 0) return number;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Option " + option + " needs a number which is not negative.");
+    }
+
+    /**
+     * Expand the input arguments into tex files. An argument is either a path of file, or a glob pattern such as
+     * {@code chapters/Differential-*.tex} whose folder part contains no wildcard. The files matched by a pattern are
+     * sorted by their path. A missing file, or a pattern which matches nothing, is counted as a warning.
+     *
+     * @return the tex files
+     */
+    private List<File> expandInputPatterns() {
+        List<File> files = new ArrayList<>();
+        for (String pattern : inputPatterns) {
+            if (new File(pattern).exists()) {
+                files.add(new File(pattern));
+                continue;
+            }
+            if (!isGlob(pattern)) {
+                log.println(Logger.LOW, "WARNING--tex file not found: {}", new File(pattern).getName());
+                warningCount++;
+                continue;
+            }
+            List<File> matched = expandGlob(pattern);
+            if (matched.isEmpty()) {
+                log.println(Logger.LOW, "WARNING--no tex file matches: {}", pattern);
+                warningCount++;
+            }
+            files.addAll(matched);
+        }
+        return files;
+    }
+
+    private boolean isGlob(String pattern) {
+        return pattern.indexOf('*') != -1 || pattern.indexOf('?') != -1 || pattern.indexOf('[') != -1
+                || pattern.indexOf('{') != -1;
+    }
+
+    private List<File> expandGlob(String pattern) {
+        int firstWildcard = pattern.length();
+        for (char c : new char[]{'*', '?', '[', '{'}) {
+            int index = pattern.indexOf(c);
+            if (index != -1) firstWildcard = Math.min(firstWildcard, index);
+        }
+        int separator = Math.max(pattern.lastIndexOf('/', firstWildcard), pattern.lastIndexOf(File.separatorChar, firstWildcard));
+        Path folder = Paths.get(separator == -1 ? "." : separator == 0 ? File.separator : pattern.substring(0, separator));
+        String glob = pattern.substring(separator + 1);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        if (!Files.isDirectory(folder)) return Collections.emptyList();
+        boolean recursive = glob.indexOf('/') != -1 || glob.indexOf(File.separatorChar) != -1 || glob.contains("**");
+        try (Stream<Path> paths = recursive ? Files.walk(folder) : Files.list(folder)) {
+            List<File> matched = paths.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(folder.relativize(path)))
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+            Collections.sort(matched);
+            return matched;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A record of the inputs and outputs of the last merge, stored in a properties file next to the parts folder.
+ * The merge compares the content hashes of its inputs against the record to find out which files could be skipped.
+ * The records which are not queried or written by a complete merge belong to files no longer merged, they are dropped
+ * by {@link #prune()}. The manifest is thread safe.
+ */
+class BuildManifest {
+    private static final String COMMENT = "Build manifest of the merge, delete this file to force a full merge";
+    private final File manifestFile;
+    private final Properties entries = new Properties();
+    // keys queried or written since the manifest was loaded
+    private final Set<String> touched = ConcurrentHashMap.newKeySet();
+
+    private BuildManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Load the manifest from file. An empty manifest is returned if the file does not exist or can not be read,
+     * which means every input will be treated as changed.
+     *
+     * @param manifestFile the manifest file
+     * @param log          logger
+     * @return the loaded manifest
+     */
+    static BuildManifest load(File manifestFile, Logger log) {
+        BuildManifest manifest = new BuildManifest(manifestFile);
+        if (manifestFile.exists()) {
+            Reader reader = null;
+            try {
+                reader = new InputStreamReader(new FileInputStream(manifestFile), "UTF-8");
+                manifest.entries.load(reader);
+            } catch (IOException | IllegalArgumentException e) {
+                log.println(Logger.LOW, "Build manifest: {} is broken, all files will be merged.", manifestFile);
+                manifest.entries.clear();
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        log.printStackTrace(e);
+                    }
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Query the value recorded for a key.
+     *
+     * @param key the key
+     * @return the value, or {@code null} if there is no record
+     */
+    String get(String key) {
+        touched.add(key);
+        return entries.getProperty(key);
+    }
+
+    /**
+     * Check if the recorded value of a key equals to the given value.
+     *
+     * @param key   the key
+     * @param value the expected value
+     * @return {@code true} if the record exists and equals to value
+     */
+    boolean matches(String key, String value) {
+        touched.add(key);
+        return value != null && value.equals(entries.getProperty(key));
+    }
+
+    void put(String key, String value) {
+        touched.add(key);
+        entries.setProperty(key, value);
+    }
+
+    void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Drop all the records.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Drop the records which have not been queried or written since the manifest was loaded. Only a merge which has
+     * checked every file should prune, otherwise the records of the files not checked yet are lost.
+     */
+    void prune() {
+        entries.keySet().retainAll(touched);
+    }
+
+    /**
+     * Write the manifest back to its file, the previous manifest is replaced only when the new one is completely
+     * written. The manifest is saved by one thread at a time, since the temporary file is shared.
+     *
+     * @param log logger
+     */
+    synchronized void save(Logger log) {
+        File tempFile = AtomicFiles.tempFileFor(manifestFile);
+        Writer writer = null;
+        boolean completed = false;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+            entries.store(writer, COMMENT);
+            writer.close();
+            writer = null;
+            AtomicFiles.replace(tempFile, manifestFile);
+            completed = true;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    log.printStackTrace(e);
+                }
+            }
+            if (!completed) AtomicFiles.discard(tempFile);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation of a run. A run is cancelled by interrupting its thread, as the terminate button does, and
+ * every stage checks for it at file boundaries, so that a cancel takes effect after the file at hand instead of after
+ * the whole stage. The stage stops by a {@code CancellationException}, which is caught where the run started.
+ * <p>
+ * The work done before the cancel is kept for the next run: the moves of the arrangement and the compiled figures are
+ * on the disk already, and the merge saves its manifest as a checkpoint, so the files merged before the cancel are
+ * not merged again.
+ */
+final class Cancellation {
+    private Cancellation() {
+    }
+
+    /**
+     * Stop the current stage if the run has been cancelled. The interrupt status of the thread is kept, so the later
+     * stages stop as well.
+     *
+     * @throws CancellationException if the current thread has been interrupted
+     */
+    static void check() {
+        if (Thread.currentThread().isInterrupted()) throw new CancellationException("The run has been cancelled.");
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes of files and strings, used to find out whether an input has changed since the last run.
+ */
+final class Digests {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Digests() {
+    }
+
+    /**
+     * Create a new SHA-1 digest.
+     *
+     * @return a message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hash the content of a file, the file is read as a stream.
+     *
+     * @param file the file to hash
+     * @return hash of the file content in hex
+     * @throws IOException if the file can not be read
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hash the content of a file if it can be read, a read error is logged.
+     *
+     * @param file the file to hash
+     * @param log  logger of the read error
+     * @return hash of the file content in hex, or {@code null} if the file does not exist or could not be read
+     */
+    static String hashOrNull(File file, Logger log) {
+        if (!file.exists()) return null;
+        try {
+            return hash(file);
+        } catch (IOException e) {
+            log.printStackTrace(e);
+            return null;
+        }
+    }
+
+    /**
+     * Hash a string in UTF-8.
+     *
+     * @param content the string to hash
+     * @return hash of the string in hex
+     */
+    static String hash(String content) {
+        return toHex(newDigest().digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.File;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An index of all the figure files in the figure folder, built from the snapshot of the folder.
+ * The traversal follows the same rule as the former recursive search in {@code TexProcess}: only the sub folders
+ * named like {@code sizeNNN} are entered, files directly under the figure folder are also indexed.
+ */
+class FigureCatalog {
+    private static final Pattern SIZE_FOLDER_PATTERN = Pattern.compile("^size([\\d]+)$");
+    private final File figureFolder;
+    private final Map<String, List<File>> filesByName = new HashMap<>();
+    private final Map<File, Integer> sizeByFile = new HashMap<>();
+
+    private FigureCatalog(File figureFolder) {
+        this.figureFolder = figureFolder;
+    }
+
+    /**
+     * Build the catalog from a snapshot of the figure folder, which is traversed only once.
+     *
+     * @param snapshot snapshot of the root folder of figures
+     * @return the catalog of all the figures in the folder
+     */
+    static FigureCatalog build(FigureFolderSnapshot snapshot) {
+        FigureCatalog catalog = new FigureCatalog(snapshot.getFolder());
+        catalog.collect(snapshot, snapshot.getFolder(), null);
+        return catalog;
+    }
+
+    private void collect(FigureFolderSnapshot snapshot, File folder, Integer size) {
+        List<FigureFolderSnapshot.Entry> entries = snapshot.list(folder);
+        if (entries == null) return;
+        for (FigureFolderSnapshot.Entry entry : entries) {
+            File file = entry.getFile();
+            if (entry.isDirectory()) {
+                Matcher matcher = SIZE_FOLDER_PATTERN.matcher(entry.getName());
+                if (matcher.find()) {
+                    // the outermost size folder determines the size of the figures inside
+                    collect(snapshot, file, size != null ? size : Integer.valueOf(matcher.group(1)));
+                }
+            } else {
+                filesByName.computeIfAbsent(entry.getName(), key -> new ArrayList<>()).add(file);
+                if (size != null) sizeByFile.put(file, size);
+            }
+        }
+    }
+
+    /**
+     * Find the files with certain name in the catalog.
+     *
+     * @param filename the target file name
+     * @return a list of found files, empty if there is no such file
+     */
+    List<File> findByFileName(String filename) {
+        List<File> found = filesByName.get(filename);
+        return found == null ? Collections.emptyList() : found;
+    }
+
+    /**
+     * Query the size of a figure, which is parsed from the name of the {@code sizeNNN} folder it lies in.
+     *
+     * @param file a file returned by {@code findByFileName}
+     * @return the size of the figure, or {@code null} if the figure is not in any size folder
+     */
+    Integer getSize(File file) {
+        return sizeByFile.get(file);
+    }
+
+    /**
+     * Compute a fingerprint of the figures of some names, which changes if a figure of the names is added, removed or
+     * moved to another folder, so a file referring to the names needs to be decorated again.
+     *
+     * @param names names of figures
+     * @return fingerprint of the figures in hex
+     */
+    String fingerprint(Collection<String> names) {
+        StringBuilder content = new StringBuilder();
+        for (String name : new TreeSet<>(names)) {
+            List<String> entries = new ArrayList<>();
+            for (File file : findByFileName(name)) {
+                entries.add(file.getAbsolutePath() + "\t" + sizeByFile.get(file));
+            }
+            Collections.sort(entries);
+            content.append(name).append('\n');
+            for (String entry : entries) {
+                content.append(entry).append('\n');
+            }
+        }
+        return Digests.hash(content.toString());
+    }
+
+    /**
+     * Apply the changes of some files and folders of the figure folder, which have been applied to the snapshot
+     * already. A changed file is updated in place, the catalog is built again from the snapshot only if a folder which
+     * is indexed changed. The changes of the files and folders which are not indexed are ignored.
+     *
+     * @param snapshot     the snapshot which the catalog has been built from
+     * @param changedFiles the changed files and folders
+     * @return the names whose figures have been added, removed, or moved to a folder of another size
+     */
+    Set<String> update(FigureFolderSnapshot snapshot, Collection<File> changedFiles) {
+        Set<String> changed = new HashSet<>();
+        for (File file : changedFiles) {
+            File folder = file.getParentFile();
+            if (folder == null || !isIndexedFolder(folder)) continue;
+            String name = file.getName();
+            FigureFolderSnapshot.Entry entry = snapshot.get(file);
+            List<File> files = filesByName.get(name);
+            boolean indexed = files != null && files.contains(file);
+            if (entry == null ? !indexed : entry.isDirectory()) {
+                // a folder changed, every figure in it may have changed
+                FigureCatalog rebuilt = build(snapshot);
+                changed.addAll(rebuilt.changedNames(this));
+                filesByName.clear();
+                filesByName.putAll(rebuilt.filesByName);
+                sizeByFile.clear();
+                sizeByFile.putAll(rebuilt.sizeByFile);
+                return changed;
+            }
+            Integer previousSize = sizeByFile.remove(file);
+            if (indexed) files.remove(file);
+            if (entry != null) {
+                Integer size = getFolderSize(folder);
+                filesByName.computeIfAbsent(name, key -> new ArrayList<>()).add(file);
+                if (size != null) sizeByFile.put(file, size);
+                if (indexed && Objects.equals(size, previousSize)) continue;
+            } else if (files.isEmpty()) {
+                filesByName.remove(name);
+            }
+            changed.add(name);
+        }
+        return changed;
+    }
+
+    /**
+     * Check if the files in a folder are indexed: the folder is the figure folder, or a size folder all of whose
+     * ancestors in the figure folder are size folders.
+     */
+    private boolean isIndexedFolder(File folder) {
+        while (!folder.equals(figureFolder)) {
+            if (!SIZE_FOLDER_PATTERN.matcher(folder.getName()).find()) return false;
+            folder = folder.getParentFile();
+            if (folder == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the size of the figures in an indexed folder, which is decided by the outermost size folder.
+     */
+    private Integer getFolderSize(File folder) {
+        Integer size = null;
+        while (!folder.equals(figureFolder)) {
+            Matcher matcher = SIZE_FOLDER_PATTERN.matcher(folder.getName());
+            if (matcher.find()) size = Integer.valueOf(matcher.group(1));
+            folder = folder.getParentFile();
+        }
+        return size;
+    }
+
+    /**
+     * Find the names whose figures differ from an earlier catalog of the same folder: a figure of the name has been
+     * added, removed, or moved to a folder of another size.
+     *
+     * @param previous the earlier catalog
+     * @return the changed names, empty if the catalogs are the same
+     */
+    Set<String> changedNames(FigureCatalog previous) {
+        Set<String> names = new HashSet<>(filesByName.keySet());
+        names.addAll(previous.filesByName.keySet());
+        Set<String> changed = new HashSet<>();
+        for (String name : names) {
+            List<File> files = findByFileName(name);
+            if (!files.equals(previous.findByFileName(name))) {
+                changed.add(name);
+                continue;
+            }
+            for (File file : files) {
+                if (!Objects.equals(getSize(file), previous.getSize(file))) {
+                    changed.add(name);
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    File getFigureFolder() {
+        return figureFolder;
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A snapshot of the whole figure folder: the name, length, last modified time and type of every entry, taken by a
+ * single walk of the folder. The sub folders are walked in parallel as fork-join tasks, the attributes of the entries
+ * of a folder are read together with the listing of the folder.
+ * <p>
+ * The snapshot is shared by everything that looks into the figure folder during a run: the arrangement, the check
+ * of duplicated files, the figure catalog of the merge and the figure list, so that a run walks the folder only once.
+ * The moves, deletions and new folders made by the arrangement are applied to the snapshot by the arrangement itself,
+ * the changes made by others are applied by the watch mode as they are reported.
+ * The entries of a folder are kept in the order they are listed by the file system, a moved file or a new folder is
+ * appended to the entries of the target folder.
+ * <p>
+ * Linked folders are followed. A linked folder which leads back to one of the folders containing it is listed but not
+ * walked, otherwise a loop of links would be walked without end.
+ */
+final class FigureFolderSnapshot {
+    private final File folder;
+    private final Entry root;
+    private final Map<String, Entry> entriesByPath = new HashMap<>();
+
+    private FigureFolderSnapshot(File folder, Entry root) {
+        this.folder = folder;
+        this.root = root;
+        if (root != null) index(root);
+    }
+
+    /**
+     * Walk the folder and take the snapshot of it.
+     *
+     * @param folder the root folder of figures
+     * @return the snapshot, which is empty if the folder does not exist
+     */
+    static FigureFolderSnapshot take(File folder) {
+        if (!folder.isDirectory()) return new FigureFolderSnapshot(folder, null);
+        Entry root = new Entry(folder, true, 0, folder.lastModified());
+        ForkJoinPool.commonPool().invoke(new WalkTask(root, null));
+        return new FigureFolderSnapshot(folder, root);
+    }
+
+    private void index(Entry entry) {
+        entriesByPath.put(key(entry.file), entry);
+        if (entry.children != null) {
+            for (Entry child : entry.children) {
+                index(child);
+            }
+        }
+    }
+
+    private static String key(File file) {
+        return file.getAbsolutePath();
+    }
+
+    File getFolder() {
+        return folder;
+    }
+
+    /**
+     * List the entries of a folder.
+     *
+     * @param folder a folder in the snapshot
+     * @return a copy of the entries of the folder, or {@code null} if it is not a folder in the snapshot
+     */
+    synchronized List<Entry> list(File folder) {
+        Entry entry = entriesByPath.get(key(folder));
+        if (entry == null || entry.children == null) return null;
+        return new ArrayList<>(entry.children);
+    }
+
+    /**
+     * Get the entry of a file or folder.
+     *
+     * @param file the file or folder
+     * @return the entry, or {@code null} if it is not in the snapshot
+     */
+    synchronized Entry get(File file) {
+        return entriesByPath.get(key(file));
+    }
+
+    /**
+     * Check if a file or folder exists in the snapshot.
+     *
+     * @param file the file or folder
+     * @return {@code true} if it exists
+     */
+    boolean exists(File file) {
+        return get(file) != null;
+    }
+
+    /**
+     * Apply a move of a file which has been done on the file system. The moved file keeps its length and last
+     * modified time.
+     *
+     * @param source the file before the move
+     * @param target the file after the move
+     */
+    synchronized void moved(File source, File target) {
+        Entry entry = remove(source);
+        if (entry == null) return;
+        add(new Entry(target, entry.directory, entry.length, entry.lastModified));
+    }
+
+    /**
+     * Apply a deletion of a file which has been done on the file system.
+     *
+     * @param file the deleted file
+     */
+    synchronized void deleted(File file) {
+        remove(file);
+    }
+
+    /**
+     * Apply a creation of a folder which has been done on the file system.
+     *
+     * @param folder the new folder
+     */
+    synchronized void folderCreated(File folder) {
+        if (entriesByPath.containsKey(key(folder))) return;
+        Entry entry = new Entry(folder, true, 0, folder.lastModified());
+        entry.children = new ArrayList<>();
+        add(entry);
+    }
+
+    /**
+     * Read a file or folder again after it has been created, changed or deleted by others, as reported by a watch of
+     * the folder. A new folder is walked, the listing of a folder which is still there is kept, since the changes of
+     * its entries are reported one by one.
+     *
+     * @param file the file or folder
+     */
+    synchronized void refreshed(File file) {
+        Entry previous = entriesByPath.get(key(file));
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException | InvalidPathException e) {
+            if (previous != null) remove(file);
+            return;
+        }
+        if (previous != null && previous.directory && attributes.isDirectory()) return;
+        if (previous != null) remove(file);
+        Entry entry = new Entry(file, attributes.isDirectory(), attributes.size(),
+                attributes.lastModifiedTime().toMillis());
+        if (entry.directory) ForkJoinPool.commonPool().invoke(new WalkTask(entry, null));
+        add(entry);
+        if (entry.parent != null) index(entry);
+    }
+
+    /**
+     * Walk a folder again and replace all the entries in it, when the changes in it could not be followed.
+     *
+     * @param folder a folder in the snapshot
+     */
+    synchronized void rewalk(File folder) {
+        Entry entry = entriesByPath.get(key(folder));
+        if (entry == null || entry.children == null) return;
+        for (Entry child : entry.children) {
+            unindex(child);
+        }
+        ForkJoinPool.commonPool().invoke(new WalkTask(entry, null));
+        index(entry);
+    }
+
+    private Entry remove(File file) {
+        Entry entry = entriesByPath.remove(key(file));
+        if (entry == null) return null;
+        if (entry.parent != null) entry.parent.children.remove(entry);
+        if (entry.children != null) {
+            for (Entry child : entry.children) {
+                unindex(child);
+            }
+        }
+        return entry;
+    }
+
+    private void unindex(Entry entry) {
+        entriesByPath.remove(key(entry.file));
+        if (entry.children != null) {
+            for (Entry child : entry.children) {
+                unindex(child);
+            }
+        }
+    }
+
+    private void add(Entry entry) {
+        Entry parent = entriesByPath.get(key(entry.file.getAbsoluteFile().getParentFile()));
+        if (parent == null || parent.children == null) return;
+        entry.parent = parent;
+        parent.children.add(entry);
+        entriesByPath.put(key(entry.file), entry);
+    }
+
+    /**
+     * A file or folder in the snapshot.
+     */
+    static final class Entry {
+        private final File file;
+        private final boolean directory;
+        private final long length;
+        private final long lastModified;
+        private Entry parent;
+        private List<Entry> children;
+
+        private Entry(File file, boolean directory, long length, long lastModified) {
+            this.file = file;
+            this.directory = directory;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the file, whose path is made of the path of the figure folder and the names of the entries, as
+         * {@code File.listFiles} would give
+         */
+        File getFile() {
+            return file;
+        }
+
+        String getName() {
+            return file.getName();
+        }
+
+        boolean isDirectory() {
+            return directory;
+        }
+
+        long length() {
+            return length;
+        }
+
+        long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+
+    /**
+     * List a folder with the attributes of its entries, then walk the sub folders in parallel.
+     */
+    private static final class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Entry folder;
+        // the task of the folder containing this one, null for the folder the walk starts from
+        private final WalkTask parent;
+        private final Path realPath;
+
+        private WalkTask(Entry folder, WalkTask parent) {
+            this.folder = folder;
+            this.parent = parent;
+            this.realPath = realPath(folder.file);
+        }
+
+        private static Path realPath(File file) {
+            try {
+                return file.toPath().toRealPath();
+            } catch (IOException | InvalidPathException e) {
+                return file.getAbsoluteFile().toPath().normalize();
+            }
+        }
+
+        /**
+         * @return {@code true} if this folder is the same folder as one of the folders containing it, through links
+         */
+        private boolean isLoop() {
+            for (WalkTask ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+                if (ancestor.realPath.equals(realPath)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void compute() {
+            List<Entry> children = new ArrayList<>();
+            try {
+                Files.walkFileTree(folder.file.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1,
+                        new SimpleFileVisitor<Path>() {
+                            @Override
+                            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                                children.add(new Entry(new File(folder.file, path.getFileName().toString()),
+                                        attributes.isDirectory(), attributes.size(),
+                                        attributes.lastModifiedTime().toMillis()));
+                                return FileVisitResult.CONTINUE;
+                            }
+
+                            @Override
+                            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                                // the entry is still listed, as File.listFiles would do
+                                children.add(new Entry(new File(folder.file, path.getFileName().toString()), false,
+                                        0, 0));
+                                return FileVisitResult.CONTINUE;
+                            }
+
+                            @Override
+                            public FileVisitResult postVisitDirectory(Path path, IOException e) {
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+            } catch (IOException e) {
+                // the folder could not be listed, it is taken as empty
+            } catch (InvalidPathException e) {
+                // the name could not be encoded in the platform charset, list the folder as File.listFiles does
+                listFiles(children);
+            }
+            List<WalkTask> tasks = new ArrayList<>();
+            for (Entry child : children) {
+                child.parent = folder;
+                if (!child.directory) continue;
+                WalkTask task = new WalkTask(child, this);
+                if (task.isLoop()) {
+                    child.children = new ArrayList<>();
+                } else {
+                    tasks.add(task);
+                }
+            }
+            folder.children = children;
+            invokeAll(tasks);
+        }
+
+        private void listFiles(List<Entry> children) {
+            children.clear();
+            File[] files = folder.file.listFiles();
+            if (files == null) return;
+            for (File file : files) {
+                children.add(new Entry(file, file.isDirectory(), file.length(), file.lastModified()));
+            }
+        }
+    }
+}
@@ -1,7 +1,9 @@
 import javax.swing.*;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,6 +16,7 @@ public class FigureListGenerator implements Runnable {
     private static final String FIGURE_BODY = "}\n" + "\\caption{";
     private static final String FIGURE_TAIL = "}\n" + "\\end{figure}\n";
     private static final String CLEAR_PAGE = "\\clearpage\n";
+    private static final String[] SHARD_EXTENSIONS = {".tex", ".pdf", ".aux", ".log"};
     private final int clearPageCount = 20;
     private File figureListFile;
     private File figureFolder;
@@ -22,6 +25,11 @@ public class FigureListGenerator implements Runnable {
     private SimpleTexProcessProgram mainWindow;
     private boolean needArrange;
     private boolean deleteDuplicated;
+    private FigureFolderSnapshot snapshot;
+    private int shardSize = Integer.getInteger("figurelist.shardSize", -1);
+    // the documents written by the last generation, with their figures
+    private final Map<File, List<File>> documents = new LinkedHashMap<>();
+    private final ParallelTexCompiler compiler = new ParallelTexCompiler("shard", "figure list compile");
 
     FigureListGenerator(File figureListFile, File figureFolder, boolean needArrange, boolean deleteDuplicated) {
         this.figureListFile = figureListFile;
@@ -43,6 +51,7 @@ public class FigureListGenerator implements Runnable {
     private void arrangeAndRemoveDuplicated() {
         if (needArrange) {
             AsyFileArrange arrange = new AsyFileArrange(figureFolder);
+            arrange.setSnapshot(getSnapshot());
             if (deleteDuplicated) {
                 boolean flag = arrange.listDuplicateFiles();
                 if (flag) {
@@ -58,16 +67,230 @@ public class FigureListGenerator implements Runnable {
         }
     }
 
-    private void generateFigureList() {
+    /**
+     * The figure folder is walked once, the snapshot is shared with the arrangement, which applies its changes to it.
+     */
+    private FigureFolderSnapshot getSnapshot() {
+        if (snapshot == null) snapshot = FigureFolderSnapshot.take(figureFolder);
+        return snapshot;
+    }
+
+    /**
+     * Set the snapshot of the figure folder, when it has been taken by an earlier stage of the run.
+     *
+     * @param snapshot snapshot of the figure folder
+     */
+    void setSnapshot(FigureFolderSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Set the statistics which the compiled shards are recorded to.
+     *
+     * @param statistics statistics of the current run
+     */
+    void setStatistics(RunStatistics statistics) {
+        compiler.setStatistics(statistics);
+    }
+
+    /**
+     * Set how many documents of the figure list could be compiled at the same time, which is the count of processors
+     * by default.
+     *
+     * @param parallelism maximum count of xelatex processes
+     */
+    void setParallelism(int parallelism) {
+        compiler.setParallelism(parallelism);
+    }
+
+    /**
+     * Split the figure list into shards. A shard is a standalone document of the figures of one folder below the
+     * figure folder, such as {@code size120}, named as {@code figurelist-size120.tex} next to the figure list. With a
+     * positive shard size the figures of a folder are cut further into chunks of about that many figures, named as
+     * {@code figurelist-size120-1.tex}; the cuts depend on the names of the figures instead of their count, so a new
+     * figure changes only the chunk it falls into. The figure list is a single document by default.
+     *
+     * @param shardSize about how many figures a chunk has, 0 for one shard per folder, negative for a single document
+     */
+    void setShardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Write the figure list. The figures are streamed into a temporary file next to the document, which replaces the
+     * document only if its content has changed, so a cancel leaves the last figure list as it is, and an unchanged
+     * document keeps its time stamp. In sharded mode the shards of folders which are gone are deleted.
+     */
+    void generateFigureList() {
         log.println("============================================Generate start============================================");
+        List<File> figureFileList = new ArrayList<>();
+        getListOfAllFigures(figureFolder, figureFileList);
+        documents.clear();
+        if (shardSize < 0) {
+            writeDocument(figureListFile, figureFileList);
+            documents.put(figureListFile, figureFileList);
+            return;
+        }
+        Map<String, List<File>> folders = new TreeMap<>();
+        for (File figure : figureFileList) {
+            folders.computeIfAbsent(shardFolderName(figure), name -> new ArrayList<>()).add(figure);
+        }
+        File folder = figureListFile.getAbsoluteFile().getParentFile();
+        int changed = 0;
+        for (Map.Entry<String, List<File>> entry : folders.entrySet()) {
+            List<List<File>> chunks = splitIntoChunks(entry.getValue());
+            for (int i = 0; i < chunks.size(); i++) {
+                String name = getShardPrefix() + entry.getKey() + (shardSize > 0 ? "-" + (i + 1) : "") + ".tex";
+                File shard = new File(folder, name);
+                if (writeDocument(shard, chunks.get(i))) changed++;
+                documents.put(shard, chunks.get(i));
+            }
+        }
+        int deleted = deleteObsoleteShards(folder);
+        log.println(Logger.LOW, "Figure list: {} figure(s) in {} shard(s), {} changed, {} deleted.",
+                figureFileList.size(), documents.size(), changed, deleted);
+    }
+
+    /**
+     * Compile the documents of the figure list written by {@link #generateFigureList()} which are out of date: a
+     * document is compiled again if its pdf file is missing, or older than the document or any figure in it.
+     *
+     * @return count of documents which could not be compiled
+     */
+    int compileFigureList() {
+        List<File> stale = new ArrayList<>();
+        for (Map.Entry<File, List<File>> entry : documents.entrySet()) {
+            if (isStale(entry.getKey(), entry.getValue())) stale.add(entry.getKey());
+        }
+        log.println(Logger.LOW, "Figure list: {} of {} document(s) to compile.", stale.size(), documents.size());
+        return compiler.compile(stale);
+    }
+
+    /**
+     * Stop the compilation of the figure list.
+     */
+    void destroy() {
+        compiler.destroy();
+    }
+
+    private boolean isStale(File document, List<File> figures) {
+        File pdf = new File(document.getParentFile(), baseName(document.getName()) + ".pdf");
+        long compiled = pdf.lastModified();
+        if (compiled == 0 || compiled < document.lastModified()) return true;
+        for (File figure : figures) {
+            FigureFolderSnapshot.Entry entry = getSnapshot().get(new File(figure.getParentFile(),
+                    baseName(figure.getName()) + ".pdf"));
+            if (entry != null && entry.lastModified() > compiled) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return name of the folder right below the figure folder which the figure is in, or the name of the figure
+     * folder for the figures right in it
+     */
+    private String shardFolderName(File figure) {
+        String folderPath = figureFolder.getAbsolutePath() + File.separator;
+        String path = figure.getAbsolutePath();
+        if (path.startsWith(folderPath)) {
+            String relative = path.substring(folderPath.length());
+            int separator = relative.indexOf(File.separatorChar);
+            if (separator > 0) return relative.substring(0, separator).replace(" ", "_");
+        }
+        return figureFolder.getAbsoluteFile().getName().replace(" ", "_");
+    }
+
+    /**
+     * Cut the figures of a folder into chunks, in the order of their names. A chunk ends after a figure whose name
+     * hashes to 0 modulo the shard size, or when it has three times the shard size figures.
+     */
+    private List<List<File>> splitIntoChunks(List<File> figures) {
+        List<List<File>> chunks = new ArrayList<>();
+        figures.sort(Comparator.comparing(File::getName).thenComparing(File::getPath));
+        if (shardSize <= 0) {
+            chunks.add(figures);
+            return chunks;
+        }
+        List<File> chunk = new ArrayList<>();
+        for (File figure : figures) {
+            chunk.add(figure);
+            if (Math.floorMod(mix(figure.getName().hashCode()), shardSize) == 0 || chunk.size() >= 3 * shardSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!chunk.isEmpty()) chunks.add(chunk);
+        return chunks;
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Delete the shards which have not been written by the last generation, with their pdf and auxiliary files.
+     *
+     * @return count of shards deleted
+     */
+    private int deleteObsoleteShards(File folder) {
+        int deleted = 0;
+        File[] files = folder.listFiles();
+        if (files == null) return 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(getShardPrefix()) || !name.endsWith(".tex") || documents.containsKey(file)) continue;
+            for (String extension : SHARD_EXTENSIONS) {
+                File shardFile = new File(folder, baseName(name) + extension);
+                if (shardFile.exists() && !shardFile.delete()) {
+                    log.println(Logger.LOW, "WARNING--Can not delete the obsolete shard {}", shardFile.getName());
+                }
+            }
+            log.println(Logger.MEDIUM, "Figure list: obsolete shard {} deleted.", name);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    private String getShardPrefix() {
+        return baseName(figureListFile.getName()) + "-";
+    }
+
+    private static String baseName(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? name : name.substring(0, dot);
+    }
+
+    /**
+     * Stream a document with the figures into a temporary file, which replaces the document if the content differs.
+     *
+     * @return {@code true} if the document has been written
+     */
+    private boolean writeDocument(File document, List<File> figures) {
+        File tempFile = AtomicFiles.tempFileFor(document);
+        MessageDigest digest = Digests.newDigest();
         BufferedWriter writer = null;
+        boolean completed = false;
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(figureListFile), "UTF-8"));
-            writer.write(generateFileContent());
-        } catch (UnsupportedEncodingException e) {
-            log.printStackTrace(e);
-        } catch (FileNotFoundException e) {
-            log.printStackTrace(e);
+            writer = new BufferedWriter(new OutputStreamWriter(new DigestOutputStream(new FileOutputStream(tempFile),
+                    digest), "UTF-8"));
+            writer.write(FILE_HEAD);
+            int count = 0;
+            for (File figure : figures) {
+                Cancellation.check();
+                String figurePath = modifyPath(figure.getAbsolutePath()).replace(".asy", ".pdf");
+                String pathAsCaption = figurePath.replace("_", "\\_");
+                writer.write(FIGURE_HEAD);
+                writer.write(figurePath);
+                writer.write(FIGURE_BODY);
+                writer.write(pathAsCaption);
+                writer.write(FIGURE_TAIL);
+                if (count % clearPageCount == 0) writer.write(CLEAR_PAGE);
+                count++;
+            }
+            writer.write(FILE_TAIL);
+            completed = true;
         } catch (IOException e) {
             log.printStackTrace(e);
         } finally {
@@ -75,46 +298,48 @@ public class FigureListGenerator implements Runnable {
                 try {
                     writer.close();
                 } catch (IOException e) {
+                    completed = false;
                     log.printStackTrace(e);
                 }
             }
+            if (!completed) AtomicFiles.discard(tempFile);
         }
-    }
-
-    private String generateFileContent() {
-        StringBuilder content = new StringBuilder();
-        content.append(FILE_HEAD);
-        // get list of all figures
-        List<File> figureFileList = new ArrayList<>();
-        getListOfAllFigures(figureFolder, figureFileList);
-        int count = 0;
-        for (File figure : figureFileList) {
-            String figurePath = modifyPath(figure.getAbsolutePath()).replace(".asy", ".pdf");
-            String pathAsCaption = figurePath.replace("_", "\\_");
-            content.append(FIGURE_HEAD).append(figurePath).append(FIGURE_BODY)
-                    .append(pathAsCaption).append(FIGURE_TAIL);
-            if (count % clearPageCount == 0) content.append(CLEAR_PAGE);
-            count++;
+        if (!completed) return false;
+        try {
+            String hash = Digests.toHex(digest.digest());
+            if (document.exists() && hash.equals(Digests.hash(document))) {
+                AtomicFiles.discard(tempFile);
+                log.println(Logger.MEDIUM, "Figure list: {} is not changed.", document.getName());
+                return false;
+            }
+            AtomicFiles.replace(tempFile, document);
+            if (Logger.isEnabled(Logger.MEDIUM)) {
+                log.println(Logger.MEDIUM, "Figure list: {} written with {} figure(s).", document.getName(),
+                        figures.size());
+            }
+            return true;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+            AtomicFiles.discard(tempFile);
+            return false;
         }
-        // generate file content
-        content.append(FILE_TAIL);
-        return content.toString();
     }
 
     private void getListOfAllFigures(File figureFolder, List<File> figureFileList) {
-        for (File file : figureFolder.listFiles()) {
-            if (isLegalFileName(file)) {
-                if (file.isDirectory()) {
-                    getListOfAllFigures(file, figureFileList);
+        Cancellation.check();
+        for (FigureFolderSnapshot.Entry entry : getSnapshot().list(figureFolder)) {
+            if (isLegalFileName(entry)) {
+                if (entry.isDirectory()) {
+                    getListOfAllFigures(entry.getFile(), figureFileList);
                 } else {
                     // if file is a file
-                    figureFileList.add(file);
+                    figureFileList.add(entry.getFile());
                 }
             }
         }
     }
 
-    private boolean isLegalFileName(File file) {
+    private boolean isLegalFileName(FigureFolderSnapshot.Entry file) {
         if (file.isDirectory()) {
             if (isChineseFilenameExcluded) {
                 Matcher matcher = CONTAINS_CHINESE_PATTERN.matcher(file.getName());
@@ -140,12 +365,18 @@ public class FigureListGenerator implements Runnable {
     @Override
     public void run() {
         mainWindow.lockComponents();
-        arrangeAndRemoveDuplicated();
-        generateFigureList();
+        try {
+            arrangeAndRemoveDuplicated();
+            generateFigureList();
+            if (Boolean.getBoolean("figurelist.compile")) compileFigureList();
 //        int result = JOptionPane.showConfirmDialog(mainWindow.getMainFrame(),
 //                "合并已完成，是否编译文件" + mainFile.getName() + "?", "合并完成", JOptionPane.YES_NO_OPTION);
-        JOptionPane.showMessageDialog(mainWindow.getMainFrame(), "已生成图片列表文件。", "已生成",
-                JOptionPane.INFORMATION_MESSAGE);
-        mainWindow.unlockComponents();
+            JOptionPane.showMessageDialog(mainWindow.getMainFrame(), "已生成图片列表文件。", "已生成",
+                    JOptionPane.INFORMATION_MESSAGE);
+        } catch (CancellationException e) {
+            log.println("Figure list has been terminated.");
+        } finally {
+            mainWindow.unlockComponents();
+        }
     }
 }
@@ -0,0 +1,455 @@
+import java.io.*;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generate the index of the book in process, instead of running {@code makeindex} and reading its output back. The
+ * {@code \indexentry} records written by xelatex to the {@code .idx} file are parsed, sorted and written as the
+ * body of the {@code theindex} environment, the way the default style of {@code makeindex} does:
+ * <ul>
+ * <li>an entry is {@code key!subkey!subsubkey}, and a key may be {@code sort@text}. The characters {@code !@|} are
+ * quoted by {@code "}, a {@code "} after a backslash is not a quote,</li>
+ * <li>{@code |encap} writes the page as <code>&#92;encap{page}</code>, so {@code |see{other}} gives
+ * <code>&#92;see{other}{page}</code>. {@code |(} and {@code |)} open and close an explicit page range,</li>
+ * <li>three or more pages in succession of the same encap are merged into a range {@code first--last},</li>
+ * <li>a blank line and {@code \indexspace} separate the groups of entries by their first letter.</li>
+ * </ul>
+ * The keys are sorted by a {@code Collator} of the language tag in the system property {@code index.collation}
+ * (default {@code zh-CN}). The Chinese collation sorts the Chinese keys by pinyin, which are also grouped by the
+ * initial letter of the pinyin of their first character.
+ */
+final class IndexEngine {
+    private static final Pattern ENTRY_PATTERN = Pattern.compile("^\\\\indexentry\\{");
+    private static final Pattern ROMAN_PATTERN = Pattern.compile("^[ivxlcdm]+$", Pattern.CASE_INSENSITIVE);
+    // the first character of every initial of pinyin in the order of GB2312, and the last character of GB2312 level 1
+    private static final String PINYIN_INITIALS = "ABCDEFGHJKLMNOPQRSTWXYZ";
+    private static final String PINYIN_BOUNDARIES = "啊芭擦搭蛾发噶哈击喀垃妈拿哦啪期然撒塌挖昔压匝";
+    private static final String PINYIN_LAST = "座";
+    private static final String[] ITEMS = {"\n  \\item ", "\n    \\subitem ", "\n      \\subsubitem "};
+    private final Collator collator;
+    private final boolean pinyin;
+    private final Logger log;
+    private final Node root = new Node(null, null, null);
+    private final Comparator<Node> order;
+    private int entryCount = 0;
+    private int errorCount = 0;
+
+    IndexEngine() {
+        this(Locale.forLanguageTag(System.getProperty("index.collation", "zh-CN")));
+    }
+
+    /**
+     * @param locale the locale which the keys are sorted by
+     */
+    IndexEngine(Locale locale) {
+        this.collator = Collator.getInstance(locale);
+        this.pinyin = "zh".equals(locale.getLanguage());
+        this.log = Logger.getLog();
+        this.order = (node1, node2) -> {
+            int result = node1.collationKey.compareTo(node2.collationKey);
+            if (result == 0) result = node1.key.compareTo(node2.key);
+            if (result == 0) result = node1.text.compareTo(node2.text);
+            return result;
+        };
+    }
+
+    /**
+     * Generate the index from an {@code .idx} file.
+     *
+     * @param indexFile   the {@code .idx} file written by xelatex
+     * @param contentFile the file which the body of the index is written to
+     * @return {@code true} if the index has been written
+     */
+    boolean generate(File indexFile, File contentFile) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            read(reader);
+        } catch (FileNotFoundException e) {
+            log.println(Logger.LOW, "Index file {} not found.", indexFile.getPath());
+            return false;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.printStackTrace(e);
+                }
+            }
+        }
+        BufferedWriter writer = null;
+        boolean succeeded = false;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(contentFile), "UTF-8"));
+            writer.write(format());
+            succeeded = true;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    succeeded = false;
+                    log.printStackTrace(e);
+                }
+            }
+        }
+        log.println(Logger.LOW, "Index: {} entries, {} rejected.", entryCount, errorCount);
+        return succeeded;
+    }
+
+    /**
+     * Read the {@code \indexentry} records, a record may span lines if its braces are not closed in a line.
+     */
+    void read(BufferedReader reader) throws IOException {
+        StringBuilder record = new StringBuilder();
+        int lineNumber = 0;
+        int recordLineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (record.length() == 0) {
+                if (!ENTRY_PATTERN.matcher(line).find()) {
+                    if (!line.trim().isEmpty()) reject(lineNumber, line);
+                    continue;
+                }
+                recordLineNumber = lineNumber;
+            }
+            // a long record is broken into lines by tex, nothing is lost at the break
+            record.append(line);
+            String[] arguments = parseRecord(record);
+            if (arguments == null) continue;
+            if (arguments.length == 0 || !add(arguments[0], arguments[1].trim())) {
+                reject(recordLineNumber, record.toString());
+            }
+            record.setLength(0);
+        }
+        if (record.length() > 0) reject(recordLineNumber, record.toString());
+    }
+
+    private void reject(int lineNumber, String record) {
+        errorCount++;
+        log.println(Logger.LOW, "WARNING--index line {} is rejected: {}", lineNumber, record);
+    }
+
+    /**
+     * Split a record into the entry and the page.
+     *
+     * @return the entry and the page, an empty array if the record is malformed, or {@code null} if the braces of the
+     * record are not closed yet
+     */
+    private static String[] parseRecord(CharSequence record) {
+        int start = "\\indexentry{".length();
+        int end = closingBrace(record, start, true);
+        if (end == -1) return null;
+        if (end + 1 >= record.length() || record.charAt(end + 1) != '{') return new String[0];
+        int pageEnd = closingBrace(record, end + 2, false);
+        if (pageEnd == -1) return null;
+        if (pageEnd != record.length() - 1) return new String[0];
+        return new String[]{record.subSequence(start, end).toString(),
+                record.subSequence(end + 2, pageEnd).toString()};
+    }
+
+    private static int closingBrace(CharSequence record, int start, boolean quoted) {
+        int depth = 0;
+        for (int i = start; i < record.length(); i++) {
+            char ch = record.charAt(i);
+            if (quoted && ch == '"' && (i == 0 || record.charAt(i - 1) != '\\')) {
+                i++;
+            } else if (ch == '{') {
+                depth++;
+            } else if (ch == '}') {
+                if (depth == 0) return i;
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add an entry to the index.
+     *
+     * @param entry the first argument of {@code \indexentry}
+     * @param page  the page
+     * @return {@code false} if the entry is malformed
+     */
+    boolean add(String entry, String page) {
+        String encap = null;
+        List<String> levels = new ArrayList<>();
+        StringBuilder level = new StringBuilder();
+        for (int i = 0; i < entry.length(); i++) {
+            char ch = entry.charAt(i);
+            if (ch == '"' && (i == 0 || entry.charAt(i - 1) != '\\') && i + 1 < entry.length()) {
+                // keep the quote, so that the quoted "@" is not taken as the separator of the key later
+                level.append(ch).append(entry.charAt(++i));
+            } else if (ch == '!') {
+                levels.add(level.toString());
+                level.setLength(0);
+            } else if (ch == '|') {
+                encap = entry.substring(i + 1);
+                break;
+            } else {
+                level.append(ch);
+            }
+        }
+        levels.add(level.toString());
+        if (levels.size() > ITEMS.length || page.isEmpty()) return false;
+        Node node = root;
+        for (String key : levels) {
+            int separator = unquotedIndexOf(key, '@');
+            String sortKey = unquote(separator == -1 ? key : key.substring(0, separator));
+            String text = separator == -1 ? sortKey : unquote(key.substring(separator + 1));
+            if (sortKey.isEmpty() || text.isEmpty()) return false;
+            node = node.child(sortKey, text, collator);
+        }
+        Reference.Kind kind = Reference.Kind.PAGE;
+        if (encap != null && encap.startsWith("(")) {
+            kind = Reference.Kind.OPEN;
+            encap = encap.substring(1);
+        } else if (encap != null && encap.startsWith(")")) {
+            kind = Reference.Kind.CLOSE;
+            encap = encap.substring(1);
+        }
+        node.references.add(new Reference(page, encap == null ? "" : unquote(encap), kind));
+        entryCount++;
+        return true;
+    }
+
+    private static int unquotedIndexOf(String key, char target) {
+        for (int i = 0; i < key.length(); i++) {
+            char ch = key.charAt(i);
+            if (ch == '"' && (i == 0 || key.charAt(i - 1) != '\\')) {
+                i++;
+            } else if (ch == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String unquote(String key) {
+        if (key.indexOf('"') == -1) return key;
+        StringBuilder builder = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char ch = key.charAt(i);
+            if (ch == '"' && (i == 0 || key.charAt(i - 1) != '\\') && i + 1 < key.length()) ch = key.charAt(++i);
+            builder.append(ch);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the body of the {@code theindex} environment
+     */
+    String format() {
+        StringBuilder builder = new StringBuilder();
+        String group = null;
+        for (Node node : root.sortedChildren(order)) {
+            String nodeGroup = group(node.key);
+            if (group != null && !group.equals(nodeGroup)) builder.append("\n\n  \\indexspace\n");
+            group = nodeGroup;
+            format(node, 0, builder);
+        }
+        if (builder.length() > 0) builder.append("\n\n");
+        return builder.toString();
+    }
+
+    private void format(Node node, int depth, StringBuilder builder) {
+        builder.append(ITEMS[depth]).append(node.text);
+        for (String page : node.formatPages()) {
+            builder.append(", ").append(page);
+        }
+        for (Node child : node.sortedChildren(order)) {
+            format(child, depth + 1, builder);
+        }
+    }
+
+    /**
+     * The group of a key: symbols, numbers, a letter, or the initial of the pinyin of a Chinese character.
+     */
+    private String group(String key) {
+        int ch = key.codePointAt(0);
+        if (ch < 128) {
+            if (Character.isLetter(ch)) return String.valueOf((char) Character.toUpperCase(ch));
+            return Character.isDigit(ch) ? "0" : "!";
+        }
+        if (pinyin && Character.UnicodeScript.of(ch) == Character.UnicodeScript.HAN) {
+            String first = new String(Character.toChars(ch));
+            // a rare character is not in the collation, which is sorted after all the others
+            if (collator.compare(first, PINYIN_LAST) > 0) return "HAN";
+            for (int i = PINYIN_BOUNDARIES.length() - 1; i >= 0; i--) {
+                if (collator.compare(PINYIN_BOUNDARIES.substring(i, i + 1), first) <= 0) {
+                    return "HAN" + PINYIN_INITIALS.charAt(i);
+                }
+            }
+        }
+        return new String(Character.toChars(Character.toUpperCase(ch)));
+    }
+
+    /**
+     * An entry of the index, at one of the three levels.
+     */
+    private static final class Node {
+        private final String key;
+        private final String text;
+        // the key is compared by the collation key, which is made once for every entry instead of every comparison
+        private final CollationKey collationKey;
+        private final List<Reference> references = new ArrayList<>();
+        private Map<String, Node> children;
+
+        private Node(String key, String text, CollationKey collationKey) {
+            this.key = key;
+            this.text = text;
+            this.collationKey = collationKey;
+        }
+
+        private Node child(String key, String text, Collator collator) {
+            if (children == null) children = new HashMap<>();
+            return children.computeIfAbsent(key + '\u0000' + text,
+                    name -> new Node(key, text, collator.getCollationKey(key)));
+        }
+
+        private List<Node> sortedChildren(Comparator<Node> order) {
+            if (children == null) return Collections.emptyList();
+            List<Node> nodes = new ArrayList<>(children.values());
+            nodes.sort(order);
+            return nodes;
+        }
+
+        /**
+         * Sort the pages and merge them into ranges.
+         */
+        private List<String> formatPages() {
+            List<Reference> sorted = new ArrayList<>(references);
+            sorted.sort(null);
+            List<String> pages = new ArrayList<>();
+            List<Reference> run = new ArrayList<>();
+            Reference open = null;
+            int openIndex = -1;
+            for (Reference reference : sorted) {
+                if (open != null) {
+                    if (!reference.encap.equals(open.encap)) {
+                        // a page of other encap inside the range is kept
+                        pages.add(reference.format(reference.page));
+                    } else if (reference.kind == Reference.Kind.CLOSE) {
+                        if (!open.page.equals(reference.page)) {
+                            pages.set(openIndex, open.format(open.page + "--" + reference.page));
+                        }
+                        open = null;
+                    }
+                    continue;
+                }
+                if (reference.kind == Reference.Kind.OPEN) {
+                    flush(run, pages);
+                    // a range which is never closed is taken as its first page
+                    open = reference;
+                    openIndex = pages.size();
+                    pages.add(open.format(open.page));
+                } else if (!run.isEmpty() && !run.get(run.size() - 1).follows(reference)) {
+                    flush(run, pages);
+                    run.add(reference);
+                } else if (run.isEmpty() || !run.get(run.size() - 1).samePage(reference)) {
+                    run.add(reference);
+                }
+            }
+            flush(run, pages);
+            return pages;
+        }
+
+        private static void flush(List<Reference> run, List<String> pages) {
+            if (run.size() >= 3) {
+                Reference first = run.get(0);
+                pages.add(first.format(first.page + "--" + run.get(run.size() - 1).page));
+            } else {
+                for (Reference reference : run) {
+                    pages.add(reference.format(reference.page));
+                }
+            }
+            run.clear();
+        }
+    }
+
+    /**
+     * A page of an entry. The pages are sorted as {@code makeindex} does: lower roman, arabic, lower letters, upper
+     * roman, upper letters, then the others by their text.
+     */
+    private static final class Reference implements Comparable<Reference> {
+        private final String page;
+        private final String encap;
+        private final Kind kind;
+        private final int type;
+        private final int value;
+
+        private Reference(String page, String encap, Kind kind) {
+            this.page = page;
+            this.encap = encap;
+            this.kind = kind;
+            int type = 5;
+            int value = 0;
+            if (page.matches("\\d{1,9}")) {
+                type = 1;
+                value = Integer.parseInt(page);
+            } else if (ROMAN_PATTERN.matcher(page).matches()) {
+                type = Character.isLowerCase(page.charAt(0)) ? 0 : 3;
+                value = romanValue(page.toLowerCase());
+            } else if (page.length() == 1 && Character.isLetter(page.charAt(0))) {
+                type = Character.isLowerCase(page.charAt(0)) ? 2 : 4;
+                value = page.charAt(0);
+            }
+            this.type = type;
+            this.value = value;
+        }
+
+        private static int romanValue(String page) {
+            String digits = "ivxlcdm";
+            int[] values = {1, 5, 10, 50, 100, 500, 1000};
+            int result = 0;
+            for (int i = 0; i < page.length(); i++) {
+                int digit = values[digits.indexOf(page.charAt(i))];
+                if (i + 1 < page.length() && digit < values[digits.indexOf(page.charAt(i + 1))]) {
+                    result -= digit;
+                } else {
+                    result += digit;
+                }
+            }
+            return result;
+        }
+
+        private boolean samePage(Reference other) {
+            return type == other.type && value == other.value && page.equals(other.page)
+                    && encap.equals(other.encap);
+        }
+
+        /**
+         * @return {@code true} if the other page is this page or the next one, with the same encap
+         */
+        private boolean follows(Reference other) {
+            if (!encap.equals(other.encap) || type != other.type || type == 5) return samePage(other);
+            return other.value == value || other.value == value + 1;
+        }
+
+        private String format(String pages) {
+            return encap.isEmpty() ? pages : "\\" + encap + "{" + pages + "}";
+        }
+
+        @Override
+        public int compareTo(Reference other) {
+            if (type != other.type) return Integer.compare(type, other.type);
+            if (value != other.value) return Integer.compare(value, other.value);
+            if (type == 5 && !page.equals(other.page)) return page.compareTo(other.page);
+            // a range is opened before and closed after the other references of its first and last page
+            return Integer.compare(kind.ordinal(), other.kind.ordinal());
+        }
+
+        enum Kind {
+            OPEN, PAGE, CLOSE
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue of log contents, which could be offered by any thread and polled by a single thread.
+ * Every slot carries a sequence number telling whether it is ready to be written or to be read, so producers only
+ * compete on the tail counter and never block each other. An offer fails instead of waiting when the queue is full.
+ */
+final class LogRingBuffer {
+    private final int mask;
+    private final AtomicReferenceArray<String> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+
+    /**
+     * @param capacity minimum capacity of the queue, rounded up to a power of two
+     */
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Append a content to the queue, could be called by any thread.
+     *
+     * @param content log content
+     * @return {@code false} if the queue is full and the content is dropped
+     */
+    boolean offer(String content) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, content);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds a content of the previous round
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest content from the queue, must be called by a single thread only.
+     *
+     * @return the oldest content, or {@code null} if the queue is empty
+     */
+    String poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) return null;
+        String content = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return content;
+    }
+}
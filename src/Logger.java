@@ -1,4 +1,9 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressWarnings("WeakerAccess")
 public class Logger {
@@ -6,10 +11,27 @@ public class Logger {
     public final static int MEDIUM = 1;
     public final static int HIGH = 2;
     private static Logger log = new Logger();
-    private static int LOG_LEVEL = MEDIUM;
-    private JTextArea logField = null;
+    private static volatile int LOG_LEVEL = MEDIUM;
+    private static final int BUFFER_CAPACITY = 1 << 14;
+    private static final int FLUSH_INTERVAL = 100;
+    private volatile JTextArea logField = null;
+    private Timer flushTimer = null;
+    // the queue of the log field, created with the log field, so a buffered logger never has one
+    private volatile LogRingBuffer buffer = null;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long reportedDroppedCount = 0;
+    private volatile int maxLines = 5000;
+    private PrintStream logStream = null;
+    private final Logger parent;
+    private final StringBuilder pending;
 
     private Logger() {
+        this(null);
+    }
+
+    private Logger(Logger parent) {
+        this.parent = parent;
+        this.pending = parent == null ? null : new StringBuilder();
     }
 
     /**
@@ -30,6 +52,17 @@ public class Logger {
         Logger.LOG_LEVEL = logLevel;
     }
 
+    /**
+     * Check whether a log with certain level would be output under the current log level. This is cheap enough to be
+     * called in hot loops, to skip the computation of a log which would be dropped anyway.
+     *
+     * @param logLevel log level
+     * @return {@code true} if the log would be output
+     */
+    public static boolean isEnabled(int logLevel) {
+        return logLevel <= LOG_LEVEL;
+    }
+
     public synchronized static Logger getLog() {
 //        if (log == null) {
 //            log = new Logger();
@@ -40,11 +73,107 @@ public class Logger {
     /**
      * Set the logField, a JTextArea, to show the log to user. If logField is {@code null}, for instance, print a log
      * before set log field, no log will be output.
+     * The log is not appended to logField by the thread printing it. It is queued in a ring buffer, and a timer on
+     * the event dispatch thread appends everything queued in one batch, then removes the oldest lines beyond the
+     * maximum count of lines. If the queue is full, the log is dropped and the count of dropped lines is shown.
+     * The queue and the timer are created by the first call.
      *
      * @param logField where the log will be shown
      */
     public void setLogField(JTextArea logField) {
+        if (buffer == null) buffer = new LogRingBuffer(BUFFER_CAPACITY);
         this.logField = logField;
+        if (flushTimer == null) {
+            flushTimer = new Timer(FLUSH_INTERVAL, e -> flushToLogField());
+            flushTimer.start();
+        }
+    }
+
+    /**
+     * Set how many lines at most are kept in the log field, the oldest lines are removed first.
+     *
+     * @param maxLines maximum count of lines
+     */
+    public void setMaxLines(int maxLines) {
+        this.maxLines = Math.max(1, maxLines);
+    }
+
+    /**
+     * Query how many lines of log have been dropped, either because the queue was full or because they were removed
+     * from the log field as the oldest lines.
+     *
+     * @return count of dropped lines
+     */
+    public long getDroppedLineCount() {
+        return droppedCount.get() + reportedDroppedCount;
+    }
+
+    /**
+     * Append the queued log to the log field, must be called on the event dispatch thread.
+     */
+    private void flushToLogField() {
+        JTextArea field = logField;
+        LogRingBuffer buffer = this.buffer;
+        if (field == null || buffer == null) return;
+        StringBuilder batch = new StringBuilder();
+        String content;
+        while ((content = buffer.poll()) != null) {
+            batch.append(content);
+        }
+        long dropped = droppedCount.getAndSet(0);
+        if (dropped != 0) {
+            batch.append("...").append(dropped).append(" line(s) of log dropped...\n");
+            reportedDroppedCount += dropped;
+        }
+        if (batch.length() == 0) return;
+        field.append(batch.toString());
+        Document document = field.getDocument();
+        Element root = document.getDefaultRootElement();
+        int excess = root.getElementCount() - maxLines;
+        if (excess > 0) {
+            try {
+                document.remove(0, root.getElement(excess - 1).getEndOffset());
+                reportedDroppedCount += excess;
+            } catch (BadLocationException e) {
+                // the document is changed by someone else, try again next time
+            }
+        }
+    }
+
+    /**
+     * Set the logStream, where the log will be printed when there is no log field, for instance, when the program
+     * runs without graphical interface.
+     *
+     * @param logStream where the log will be printed
+     */
+    public void setLogStream(PrintStream logStream) {
+        this.logStream = logStream;
+    }
+
+    /**
+     * Create a logger which keeps the log in memory until {@link #flush()} is called. A task running in parallel with
+     * others logs through such a logger, so that its log is output as a whole instead of interleaving with the others.
+     * A buffered logger only collects its lines in a string builder, it is cheap enough to be created for every file.
+     *
+     * @return a buffered logger which outputs to this logger
+     */
+    Logger buffered() {
+        return new Logger(this);
+    }
+
+    /**
+     * Output the log kept by a buffered logger to the logger it was created from. Do nothing for other loggers.
+     */
+    void flush() {
+        if (parent == null) return;
+        String content;
+        synchronized (pending) {
+            content = pending.toString();
+            pending.setLength(0);
+        }
+        if (!content.isEmpty()) {
+            parent.print(content, LOW);
+        }
     }
 
     /**
@@ -54,11 +183,34 @@ public class Logger {
      * @param logLevel log level
      */
     void print(String content, int logLevel) {
-        if (logField != null && logLevel <= LOG_LEVEL) {
-            logField.append(content);
+        if (logLevel > LOG_LEVEL) return;
+        if (parent != null) {
+            synchronized (pending) {
+                pending.append(content);
+            }
+        } else if (logField != null) {
+            // the queue is set before the log field
+            if (!buffer.offer(content)) droppedCount.addAndGet(countLines(content));
+        } else if (logStream != null) {
+            logStream.print(content);
         }
     }
 
+    /**
+     * Count the lines of a log content, a content which does not end with a line terminator counts its last part as
+     * a line as well.
+     *
+     * @param content log content
+     * @return count of lines
+     */
+    private static int countLines(String content) {
+        int lines = 0;
+        for (int i = 0; i < content.length(); i++) {
+            if (content.charAt(i) == '\n') lines++;
+        }
+        return content.isEmpty() || content.charAt(content.length() - 1) == '\n' ? lines : lines + 1;
+    }
+
     /**
      * Print log with certain level then create a new line
      *
@@ -66,9 +218,97 @@ public class Logger {
      * @param logLevel log level
      */
     void println(String content, int logLevel) {
+        if (logLevel > LOG_LEVEL) return;
         print(content + "\n", logLevel);
     }
 
+    /**
+     * Print a log with certain level then create a new line. Every {@code {}} in the pattern is replaced by the
+     * string value of the next argument. Nothing is formatted or allocated if the level is not enabled, so the
+     * arguments should be passed as they are instead of being converted to strings by the caller. A primitive argument
+     * is boxed, and more than three arguments are put into an array, before the level is checked, so such a call in a
+     * hot path should be guarded by {@link #isEnabled(int)}.
+     *
+     * @param logLevel log level
+     * @param pattern  log content with placeholders
+     * @param arg      the argument
+     */
+    void println(int logLevel, String pattern, Object arg) {
+        if (logLevel > LOG_LEVEL) return;
+        print(format(pattern, new Object[]{arg}) + "\n", logLevel);
+    }
+
+    /**
+     * Print a log with certain level then create a new line, see {@link #println(int, String, Object)}.
+     *
+     * @param logLevel log level
+     * @param pattern  log content with placeholders
+     * @param arg1     the first argument
+     * @param arg2     the second argument
+     */
+    void println(int logLevel, String pattern, Object arg1, Object arg2) {
+        if (logLevel > LOG_LEVEL) return;
+        print(format(pattern, new Object[]{arg1, arg2}) + "\n", logLevel);
+    }
+
+    /**
+     * Print a log with certain level then create a new line, see {@link #println(int, String, Object)}.
+     *
+     * @param logLevel log level
+     * @param pattern  log content with placeholders
+     * @param arg1     the first argument
+     * @param arg2     the second argument
+     * @param arg3     the third argument
+     */
+    void println(int logLevel, String pattern, Object arg1, Object arg2, Object arg3) {
+        if (logLevel > LOG_LEVEL) return;
+        print(format(pattern, new Object[]{arg1, arg2, arg3}) + "\n", logLevel);
+    }
+
+    /**
+     * Print a log with certain level then create a new line, see {@link #println(int, String, Object)}.
+     *
+     * @param logLevel log level
+     * @param pattern  log content with placeholders
+     * @param args     the arguments
+     */
+    void println(int logLevel, String pattern, Object... args) {
+        if (logLevel > LOG_LEVEL) return;
+        print(format(pattern, args) + "\n", logLevel);
+    }
+
+    /**
+     * Print a log with certain level, see {@link #println(int, String, Object)}.
+     *
+     * @param logLevel log level
+     * @param pattern  log content with placeholders
+     * @param arg      the argument
+     */
+    void print(int logLevel, String pattern, Object arg) {
+        if (logLevel > LOG_LEVEL) return;
+        print(format(pattern, new Object[]{arg}), logLevel);
+    }
+
+    /**
+     * Replace every {@code {}} in the pattern by the string value of the next argument. The placeholders without
+     * corresponding argument are kept as they are.
+     *
+     * @param pattern log content with placeholders
+     * @param args    the arguments
+     * @return the formatted log content
+     */
+    private static String format(String pattern, Object[] args) {
+        StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg : args) {
+            int index = pattern.indexOf("{}", start);
+            if (index == -1) break;
+            sb.append(pattern, start, index).append(arg);
+            start = index + 2;
+        }
+        return sb.append(pattern, start, pattern.length()).toString();
+    }
+
     /**
      * Print log with default level (LOW) which indicates the log will be shown under any level setting,
      * then create a new line
@@ -93,7 +333,7 @@ public class Logger {
      * calling the {@code getStackTrace} method of an Exception. This have been replaced by {@code printStackTrace}.
      *
      * @param objects array of object, will be print to log.
-     * @see Logger#printStackTrace(Exception)
+     * @see Logger#printStackTrace(Throwable)
      */
     @Deprecated
     void println(Object[] objects) {
@@ -104,11 +344,12 @@ public class Logger {
 
     /**
      * Print stack trace of an {@code Exception} to log, syntax is similar to the method in class
-     * {@code Exception.printStackTrace}.
+     * {@code Exception.printStackTrace}. A failure of a task run by an executor should be printed by its cause, the
+     * stack trace of the {@code ExecutionException} itself only shows where the result was waited for.
      *
      * @param e exception
      */
-    void printStackTrace(Exception e) {
+    void printStackTrace(Throwable e) {
         for (StackTraceElement element : e.getStackTrace()) {
             println(element.toString());
         }
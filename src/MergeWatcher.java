@@ -0,0 +1,195 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * The watch mode, which keeps the merged book up to date while the files are being edited. The folders of the raw
+ * tex files, the folder of the main file, the folder of the header file and every folder in the figure folder are
+ * watched by a {@code WatchService}. The changes are collected until no change is reported for a quiet period, then
+ * all of them are handled by a single update:
+ * <ul>
+ * <li>a change of the figure folder is applied to the snapshot of the folder, which is kept in memory together with
+ * the figure catalog of the merge. Only the files which refer to a figure whose path or size changed are merged
+ * again,</li>
+ * <li>a changed or new raw tex file is trimmed and decorated again,</li>
+ * <li>a change of the main file refreshes its input lines, the rewrite of the main file by the update itself is not
+ * taken as a change,</li>
+ * <li>a change of the header file merges all the files again, as a new run would do.</li>
+ * </ul>
+ * The quiet period is set by the system property {@code watch.quietMillis} (default 200). The files are watched until
+ * the thread is interrupted.
+ */
+final class MergeWatcher {
+    private static final long QUIET_MILLIS = Math.max(10, Long.getLong("watch.quietMillis", 200));
+    private final TexProcess texProcess;
+    private final FigureFolderSnapshot snapshot;
+    private final File mainFile;
+    private final File headerFile;
+    private final File figureFolder;
+    private final Supplier<List<File>> inputFiles;
+    private final Logger log;
+    private final Map<WatchKey, File> watchedFolders = new HashMap<>();
+    private final Set<File> registeredFolders = new HashSet<>();
+    private WatchService watchService;
+    private String mainFileHash;
+
+    /**
+     * @param texProcess   the merge which has been processed once, its figure catalog is kept between updates
+     * @param snapshot     snapshot of the figure folder which the merge has been indexed from
+     * @param mainFile     the main file
+     * @param headerFile   the header file
+     * @param figureFolder the figure folder
+     * @param inputFiles   supplies the raw tex files, asked again whenever a tex file is changed or created
+     */
+    MergeWatcher(TexProcess texProcess, FigureFolderSnapshot snapshot, File mainFile, File headerFile,
+                 File figureFolder, Supplier<List<File>> inputFiles) {
+        this.texProcess = texProcess;
+        this.snapshot = snapshot;
+        this.mainFile = mainFile.getAbsoluteFile();
+        this.headerFile = headerFile.getAbsoluteFile();
+        this.figureFolder = figureFolder;
+        this.inputFiles = inputFiles;
+        this.log = Logger.getLog();
+    }
+
+    /**
+     * Watch the files and update the merge on changes until the thread is interrupted.
+     *
+     * @throws IOException          if the files can not be watched
+     * @throws InterruptedException if the thread is interrupted
+     */
+    void watch() throws IOException, InterruptedException {
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            registerFigureFolder(figureFolder);
+            register(mainFile.getParentFile());
+            register(headerFile.getParentFile());
+            List<File> files = inputFiles.get();
+            registerInputFolders(files);
+            texProcess.setInputRawTexFiles(files);
+            mainFileHash = Digests.hashOrNull(mainFile, log);
+            log.println(Logger.LOW, "Watching {} folder(s) for changes.", watchedFolders.size());
+            while (true) {
+                Changes changes = new Changes();
+                collect(watchService.take(), changes);
+                WatchKey key;
+                // wait until the changes settle down, so that a burst of changes is handled by a single update
+                while ((key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changes);
+                }
+                update(changes);
+            }
+        } finally {
+            watchService.close();
+        }
+    }
+
+    /**
+     * Collect the events of a watch key and reset the key.
+     */
+    private void collect(WatchKey key, Changes changes) {
+        File folder = watchedFolders.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                changes.overflow = true;
+                continue;
+            }
+            if (folder == null) continue;
+            File file = new File(folder, event.context().toString());
+            File absoluteFile = file.getAbsoluteFile();
+            if (absoluteFile.equals(mainFile)) {
+                changes.mainFile = true;
+            } else if (absoluteFile.equals(headerFile)) {
+                changes.headerFile = true;
+            } else if (isInFigureFolder(absoluteFile)) {
+                changes.figures.add(file);
+            } else if (file.getName().endsWith(".tex")) {
+                changes.texFiles.add(absoluteFile);
+            }
+        }
+        // the folder is gone, it is watched again if it is created again
+        if (!key.reset()) registeredFolders.remove(watchedFolders.remove(key));
+    }
+
+    private void update(Changes changes) throws IOException {
+        long startNanos = System.nanoTime();
+        for (File file : changes.figures) {
+            snapshot.refreshed(file);
+            FigureFolderSnapshot.Entry entry = snapshot.get(file);
+            if (entry != null && entry.isDirectory()) registerFigureFolder(file);
+        }
+        List<File> files = inputFiles.get();
+        registerInputFolders(files);
+        texProcess.setInputRawTexFiles(files);
+        boolean updated;
+        if (changes.overflow || changes.headerFile) {
+            if (changes.overflow) {
+                log.println(Logger.LOW, "Too many changes to follow, all the files will be merged again.");
+                snapshot.rewalk(figureFolder);
+                registerFigureFolder(figureFolder);
+            }
+            texProcess.process();
+            updated = true;
+        } else {
+            List<File> changedFiles = new ArrayList<>();
+            for (File file : files) {
+                if (changes.texFiles.contains(file.getAbsoluteFile())) changedFiles.add(file);
+            }
+            // the main file is rewritten by the update itself, which is not a change
+            boolean mainFileChanged = changes.mainFile
+                    && !Objects.equals(mainFileHash, Digests.hashOrNull(mainFile, log));
+            updated = texProcess.update(changedFiles, changes.figures, mainFileChanged);
+        }
+        mainFileHash = Digests.hashOrNull(mainFile, log);
+        if (updated) {
+            log.println(Logger.LOW, "Updated in {} ms, {} warning(s) in the merged files.", (System.nanoTime() - startNanos) / 1000000,
+                    texProcess.getWarningCount());
+        }
+    }
+
+    private boolean isInFigureFolder(File absoluteFile) {
+        String folderPath = figureFolder.getAbsolutePath();
+        String path = absoluteFile.getPath();
+        return path.equals(folderPath) || path.startsWith(folderPath + File.separator);
+    }
+
+    /**
+     * Watch a folder of the figure folder and all the folders in it, as they are in the snapshot.
+     */
+    private void registerFigureFolder(File folder) throws IOException {
+        List<FigureFolderSnapshot.Entry> entries = snapshot.list(folder);
+        if (entries == null) return;
+        register(folder);
+        for (FigureFolderSnapshot.Entry entry : entries) {
+            if (entry.isDirectory()) registerFigureFolder(entry.getFile());
+        }
+    }
+
+    private void registerInputFolders(List<File> files) throws IOException {
+        for (File file : files) {
+            register(file.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    private void register(File folder) throws IOException {
+        if (folder == null || !folder.isDirectory() || !registeredFolders.add(folder)) return;
+        WatchKey key = folder.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        watchedFolders.put(key, folder);
+    }
+
+    /**
+     * The changes collected for a single update.
+     */
+    private static final class Changes {
+        private final Set<File> figures = new LinkedHashSet<>();
+        private final Set<File> texFiles = new HashSet<>();
+        private boolean mainFile = false;
+        private boolean headerFile = false;
+        private boolean overflow = false;
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A journal of the moves of the arrangement. All the moves of a run are planned before any file is moved, and the plan
+ * is written to the journal, {@code .fig.moves} next to the figure folder {@code fig}. The moves are then done at the
+ * same time, one task per target folder, and the journal is deleted when all of them are done.
+ * <p>
+ * A journal found at the start of a run is left by a run which has been killed or cancelled in the middle of the
+ * moves, so an asy file could be in its size folder while its pdf file is still in the old place. The journal is
+ * replayed then: every planned move whose source is still there and whose target is not is done. With the system
+ * property {@code arrange.journal=rollback} the moves done are undone instead, every file goes back to where it was.
+ * <p>
+ * A move never replaces an existing file, a move onto an existing file fails and is logged.
+ */
+final class MoveJournal {
+    private static final String HEADER = "# Moves of the arrangement, replayed by the next run if this file is left";
+    private static final boolean ROLLBACK = "rollback".equals(System.getProperty("arrange.journal"));
+    private final File figureFolder;
+    private final File journalFile;
+    private final FigureFolderSnapshot snapshot;
+    private final Logger log;
+    // the target folders filled at the same time
+    private final int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param figureFolder the figure folder, the paths in the journal are relative to it
+     * @param snapshot     snapshot of the figure folder, the moves are applied to it
+     */
+    MoveJournal(File figureFolder, FigureFolderSnapshot snapshot) {
+        this.figureFolder = figureFolder;
+        File folder = figureFolder.getAbsoluteFile();
+        this.journalFile = new File(folder.getParentFile(), "." + folder.getName() + ".moves");
+        this.snapshot = snapshot;
+        this.log = Logger.getLog();
+    }
+
+    /**
+     * Finish or undo the moves of an interrupted run, if its journal is left.
+     */
+    void recover() {
+        if (!journalFile.exists()) return;
+        List<Move> moves;
+        try {
+            moves = read();
+        } catch (IOException e) {
+            log.println(Logger.LOW, "WARNING--Move journal: {} can not be read, it is ignored.", journalFile);
+            log.printStackTrace(e);
+            delete();
+            return;
+        }
+        int done = 0;
+        if (ROLLBACK) {
+            for (int i = moves.size() - 1; i >= 0; i--) {
+                Move move = moves.get(i);
+                if (move.target.exists() && !move.source.exists() && move(move.target, move.source, log)) done++;
+            }
+        } else {
+            for (Move move : moves) {
+                // the run could have been stopped before the target folders were created
+                if (move.source.exists() && !move.target.exists() && createFolder(move.target.getParentFile())
+                        && move(move.source, move.target, log)) {
+                    done++;
+                }
+            }
+        }
+        log.println(Logger.LOW, "Move journal: the last arrangement has been interrupted, {} of {} move(s) {}.", done,
+                moves.size(), ROLLBACK ? "rolled back" : "replayed");
+        delete();
+    }
+
+    /**
+     * Do the moves of a plan. The plan is written to the journal first, the target folders are created, and the
+     * moves into different folders are done at the same time. The journal is kept if the moves are cancelled.
+     *
+     * @param moves the moves, the moves into the same folder are done in this order
+     * @return count of moves failed
+     */
+    int moveAll(List<Move> moves) {
+        if (moves.isEmpty()) return 0;
+        try {
+            write(moves);
+        } catch (IOException e) {
+            log.println(Logger.LOW, "WARNING--Move journal: {} can not be written, the moves are not journaled.",
+                    journalFile);
+            log.printStackTrace(e);
+        }
+        Map<File, List<Move>> movesByFolder = new LinkedHashMap<>();
+        for (Move move : moves) {
+            movesByFolder.computeIfAbsent(move.target.getParentFile(), key -> new ArrayList<>()).add(move);
+        }
+        for (File folder : movesByFolder.keySet()) {
+            createFolder(folder);
+        }
+        int failures = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, movesByFolder.size()));
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (List<Move> folderMoves : movesByFolder.values()) {
+                futures.add(executor.submit(() -> moveInto(folderMoves)));
+            }
+            for (Future<Integer> future : futures) {
+                try {
+                    failures += future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    log.printStackTrace(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        // a cancelled arrangement keeps its journal, the next run finishes the moves
+        Cancellation.check();
+        delete();
+        return failures;
+    }
+
+    /**
+     * Do the moves into one folder, the log of the folder is written as a whole.
+     *
+     * @return count of moves failed
+     */
+    private int moveInto(List<Move> moves) {
+        Logger folderLog = log.buffered();
+        int failures = 0;
+        try {
+            for (Move move : moves) {
+                Cancellation.check();
+                if (!move(move.source, move.target, folderLog)) failures++;
+            }
+        } finally {
+            folderLog.flush();
+        }
+        return failures;
+    }
+
+    /**
+     * Create a target folder if it does not exist.
+     *
+     * @return {@code true} if the folder exists
+     */
+    private boolean createFolder(File folder) {
+        if (snapshot.exists(folder) || folder.isDirectory()) return true;
+        if (!folder.mkdirs()) {
+            log.println(Logger.LOW, "WARNING--Move journal: folder {} can not be created.", folder);
+            return false;
+        }
+        snapshot.folderCreated(folder);
+        return true;
+    }
+
+    private boolean move(File source, File target, Logger log) {
+        try {
+            Files.move(source.toPath(), target.toPath());
+        } catch (IOException e) {
+            log.println(Logger.LOW, "Move file: {} failed. ({})", source, e);
+            return false;
+        }
+        snapshot.moved(source, target);
+        if (Logger.isEnabled(Logger.MEDIUM)) {
+            log.println(Logger.MEDIUM, "Moved file: {} to: {}", source.getName(), target.getParent() + File.separator);
+        }
+        return true;
+    }
+
+    private void write(List<Move> moves) throws IOException {
+        File tempFile = AtomicFiles.tempFileFor(journalFile);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write("\n");
+            for (Move move : moves) {
+                writer.write(relativePath(move.source));
+                writer.write("\t");
+                writer.write(relativePath(move.target));
+                writer.write("\n");
+            }
+        } finally {
+            writer.close();
+        }
+        AtomicFiles.replace(tempFile, journalFile);
+    }
+
+    private List<Move> read() throws IOException {
+        List<Move> moves = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int tab = line.indexOf('\t');
+                if (tab == -1) throw new IOException("Broken line of move journal: " + line);
+                moves.add(new Move(new File(figureFolder, line.substring(0, tab)),
+                        new File(figureFolder, line.substring(tab + 1))));
+            }
+        } finally {
+            reader.close();
+        }
+        return moves;
+    }
+
+    private void delete() {
+        if (journalFile.exists() && !journalFile.delete()) {
+            log.println(Logger.LOW, "WARNING--Move journal: {} can not be deleted.", journalFile);
+        }
+    }
+
+    /**
+     * @return path of a file in the figure folder relative to the figure folder, separated by {@code /}
+     */
+    private String relativePath(File file) {
+        return figureFolder.getAbsoluteFile().toPath().relativize(file.getAbsoluteFile().toPath()).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    /**
+     * A move of a file in the figure folder.
+     */
+    static final class Move {
+        private final File source;
+        private final File target;
+
+        Move(File source, File target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return source + " -> " + target;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of the outlines of the parsed tex files, stored in a binary file next to the parts folder. The outline of a
+ * file is what the merge needs to know about it besides its text: the figures referred to by its
+ * {@code includegraphics} lines with the line numbers of those lines, and the tikz libraries it uses. An outline is
+ * keyed by the content hash of the file it has been parsed from, so it stays valid as long as the file is not changed,
+ * wherever the file is.
+ * <p>
+ * The figure references of an unchanged file are checked against the figure catalog from the cache, so a file is
+ * opened again only if the figures it refers to have changed. The outlines which are not used by a complete run are
+ * dropped by {@link #prune()}. The cache is thread safe.
+ * <p>
+ * The chapter title and the positions of the other lines to rewrite are not kept. The main file is generated from
+ * the names of the trimmed files only, and a file whose figures changed is decorated again as a whole.
+ */
+final class OutlineCache {
+    private static final int MAGIC = 0x4f55544c;
+    private static final int VERSION = 2;
+    private final File cacheFile;
+    private final Map<String, Outline> outlines = new ConcurrentHashMap<>();
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    private OutlineCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Load the cache from file. An empty cache is returned if the file does not exist or can not be read, every file
+     * is parsed again then.
+     *
+     * @param cacheFile the cache file
+     * @param log       logger
+     * @return the loaded cache
+     */
+    static OutlineCache load(File cacheFile, Logger log) {
+        OutlineCache cache = new OutlineCache(cacheFile);
+        if (!cacheFile.exists()) return cache;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.println(Logger.LOW, "Outline cache: {} is of another version, it is ignored.", cacheFile);
+                return cache;
+            }
+            int count = in.readInt();
+            if (count < 0) throw new IOException("Broken count of outline cache: " + count);
+            for (int i = 0; i < count; i++) {
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                cache.outlines.put(Digests.toHex(hash), Outline.read(in));
+            }
+        } catch (IOException e) {
+            log.println(Logger.LOW, "Outline cache: {} is broken, the files will be parsed again.", cacheFile);
+            cache.outlines.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.printStackTrace(e);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Query the outline of a file.
+     *
+     * @param hash content hash of the file in hex
+     * @return the outline, or {@code null} if the file has not been parsed
+     */
+    Outline get(String hash) {
+        if (hash == null) return null;
+        Outline outline = outlines.get(hash);
+        if (outline != null) used.add(hash);
+        return outline;
+    }
+
+    void put(String hash, Outline outline) {
+        if (hash == null || outline == null) return;
+        outlines.put(hash, outline);
+        used.add(hash);
+    }
+
+    /**
+     * Drop the outlines which have not been used since the cache was loaded. Only a run which has checked every file
+     * should prune, otherwise the outlines of the files not checked yet are lost.
+     */
+    void prune() {
+        outlines.keySet().retainAll(used);
+    }
+
+    /**
+     * Write the outlines to the cache file, through a temporary file so that an interrupted save keeps the last
+     * cache.
+     *
+     * @param log logger
+     */
+    synchronized void save(Logger log) {
+        File tempFile = AtomicFiles.tempFileFor(cacheFile);
+        DataOutputStream out = null;
+        boolean completed = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            Map<String, Outline> kept = new TreeMap<>(outlines);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(kept.size());
+            for (Map.Entry<String, Outline> entry : kept.entrySet()) {
+                byte[] hash = fromHex(entry.getKey());
+                out.writeByte(hash.length);
+                out.write(hash);
+                entry.getValue().write(out);
+            }
+            completed = true;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    completed = false;
+                    log.printStackTrace(e);
+                }
+            }
+        }
+        try {
+            if (completed) {
+                AtomicFiles.replace(tempFile, cacheFile);
+                return;
+            }
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        }
+        AtomicFiles.discard(tempFile);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * The outline of a parsed tex file.
+     */
+    static final class Outline {
+        private final List<String> figureNames;
+        private final int[] figureLines;
+        private final List<String> tikzLibraries;
+
+        /**
+         * @param figureNames   names of the figures referred to, in the order of the lines
+         * @param figureLines   line numbers in the trimmed file of the references
+         * @param tikzLibraries the tikz libraries used
+         */
+        Outline(List<String> figureNames, int[] figureLines, List<String> tikzLibraries) {
+            this.figureNames = Collections.unmodifiableList(new ArrayList<>(figureNames));
+            this.figureLines = figureLines.clone();
+            this.tikzLibraries = Collections.unmodifiableList(new ArrayList<>(tikzLibraries));
+        }
+
+        /**
+         * @return names of the figures referred to, a name appears once for every reference
+         */
+        List<String> getFigureNames() {
+            return figureNames;
+        }
+
+        /**
+         * @param index index of a reference in {@link #getFigureNames()}
+         * @return line number of the reference in the trimmed file
+         */
+        int getFigureLine(int index) {
+            return figureLines[index];
+        }
+
+        List<String> getTikzLibraries() {
+            return tikzLibraries;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(figureNames.size());
+            for (int i = 0; i < figureNames.size(); i++) {
+                out.writeUTF(figureNames.get(i));
+                out.writeInt(figureLines[i]);
+            }
+            out.writeInt(tikzLibraries.size());
+            for (String library : tikzLibraries) {
+                out.writeUTF(library);
+            }
+        }
+
+        private static Outline read(DataInputStream in) throws IOException {
+            int count = readCount(in);
+            List<String> figureNames = new ArrayList<>(count);
+            int[] figureLines = new int[count];
+            for (int i = 0; i < count; i++) {
+                figureNames.add(in.readUTF());
+                figureLines[i] = in.readInt();
+            }
+            count = readCount(in);
+            List<String> tikzLibraries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tikzLibraries.add(in.readUTF());
+            }
+            return new Outline(figureNames, figureLines, tikzLibraries);
+        }
+
+        private static int readCount(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            // a count larger than the lines of any tex file means the cache is broken
+            if (count < 0 || count > 1 << 24) throw new IOException("Broken count of outline: " + count);
+            return count;
+        }
+    }
+}
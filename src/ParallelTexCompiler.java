@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compile standalone documents at the same time, such as the drivers of the parts or the shards of the figure list.
+ * Every document is compiled once by {@code xelatex} in non-stop mode, in its own folder, at most {@code parallelism}
+ * of them at the same time. The output of each document is logged as a whole when the document is done, in detail
+ * only, except the errors of a failed compile.
+ * <p>
+ * The executable is {@code xelatex} on the path by default, which could be changed by the system property
+ * {@code xelatex.executable}.
+ */
+final class ParallelTexCompiler {
+    private final String kind;
+    private final String phase;
+    private final Logger log;
+    private final Set<ProcessRunner> runners = ConcurrentHashMap.newKeySet();
+    private String executable = System.getProperty("xelatex.executable", "xelatex");
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private RunStatistics statistics = new RunStatistics();
+    private volatile boolean destroyed = false;
+
+    /**
+     * @param kind  what the documents are, such as {@code part}, used in the log
+     * @param phase name of the phase of the run statistics which the documents are recorded to
+     */
+    ParallelTexCompiler(String kind, String phase) {
+        this.kind = kind;
+        this.phase = phase;
+        this.log = Logger.getLog();
+    }
+
+    /**
+     * Set how many documents could be compiled at the same time, which is the count of processors by default.
+     *
+     * @param parallelism maximum count of xelatex processes
+     */
+    void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Set the statistics which the compiled documents are recorded to.
+     *
+     * @param statistics statistics of the current run
+     */
+    void setStatistics(RunStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Compile the documents.
+     *
+     * @param documents the documents
+     * @return count of documents which could not be compiled
+     */
+    int compile(List<File> documents) {
+        if (documents.isEmpty()) return 0;
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, documents.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (File document : documents) {
+                futures.add(executor.submit(() -> {
+                    Logger documentLog = log.buffered();
+                    try {
+                        if (!compile(document, documentLog)) failures.incrementAndGet();
+                    } finally {
+                        documentLog.flush();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.printStackTrace(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            log.println(Logger.LOW, "Compile of {}s has been terminated.", kind);
+            Thread.currentThread().interrupt();
+            destroy();
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures.get();
+    }
+
+    /**
+     * Stop the compilation of all the documents.
+     */
+    void destroy() {
+        destroyed = true;
+        for (ProcessRunner runner : runners) {
+            runner.destroy();
+        }
+    }
+
+    /**
+     * Compile a document in its folder.
+     *
+     * @param document the document
+     * @param log      logger of the document
+     * @return {@code true} if xelatex exited normally
+     */
+    private boolean compile(File document, Logger log) {
+        if (destroyed) return false;
+        long startNanos = System.nanoTime();
+        ProcessRunner runner = new ProcessRunner(executable, "-interaction=nonstopmode", document.getName());
+        runner.setDirectory(document.getAbsoluteFile().getParentFile());
+        runner.setOutput(line -> log.println(line, Logger.HIGH));
+        runners.add(runner);
+        ProcessRunner.Result result = null;
+        try {
+            result = runner.run();
+        } catch (IOException e) {
+            log.println(Logger.LOW, "Can not run: {} ({})", runner.getCommandLine(), e.getMessage());
+        } catch (InterruptedException e) {
+            log.println(Logger.LOW, "Compile of {} has been terminated.", document.getName());
+            Thread.currentThread().interrupt();
+        } finally {
+            runners.remove(runner);
+        }
+        boolean succeeded = result != null && result.succeeded();
+        if (succeeded) {
+            log.println(Logger.LOW, "{}: {} compiled in {} ms, {} page(s).",
+                    Character.toUpperCase(kind.charAt(0)) + kind.substring(1), document.getName(),
+                    (System.nanoTime() - startNanos) / 1000000, result.getPages());
+        } else if (result != null) {
+            if (result.getStatus() == ProcessRunner.Status.EXITED) {
+                log.println(Logger.LOW, "WARNING--{}: {} could not be compiled, exit value: {}", kind,
+                        document.getName(), result.getExitValue());
+            } else {
+                log.println(Logger.LOW, "WARNING--{}: {} could not be compiled, the compile is {}.", kind,
+                        document.getName(), result.getStatus() == ProcessRunner.Status.DESTROYED ? "terminated"
+                                : "killed since it took too long");
+            }
+            for (ProcessRunner.Message error : result.getErrors()) {
+                log.println(Logger.LOW, "Error--{}", error);
+            }
+        }
+        statistics.phase(phase).record(document.length(), 0, succeeded ? 0 : 1);
+        return succeeded;
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compile the parts of the book separately and at the same time. A standalone driver document is generated for every
+ * part folder next to the main file: a copy of the main file whose input lines between {@code %!!!ContentStart} and
+ * {@code %!!!ContentEnd} are reduced to the trimmed files of the part, so the preamble, the header and the back matter
+ * are the same as the whole book. The driver of part {@code Integral-02} is {@code part-Integral-02.tex}, whose pdf
+ * file is {@code part-Integral-02.pdf}.
+ * <p>
+ * The drivers are compiled at the same time in the folder of the main file, see {@link ParallelTexCompiler}.
+ */
+final class PartCompiler {
+    static final String DRIVER_PREFIX = "part-";
+    private final File mainFile;
+    private final List<File> partFolders;
+    private final Logger log;
+    private final ParallelTexCompiler compiler = new ParallelTexCompiler("part", "part compile");
+    private RunStatistics statistics = new RunStatistics();
+
+    PartCompiler(File mainFile, List<File> partFolders) {
+        this.mainFile = mainFile;
+        this.partFolders = partFolders;
+        this.log = Logger.getLog();
+    }
+
+    /**
+     * Set how many parts could be compiled at the same time, which is the count of processors by default.
+     *
+     * @param parallelism maximum count of xelatex processes
+     */
+    void setParallelism(int parallelism) {
+        compiler.setParallelism(parallelism);
+    }
+
+    /**
+     * Set the statistics which the compiled parts are recorded to.
+     *
+     * @param statistics statistics of the current run
+     */
+    void setStatistics(RunStatistics statistics) {
+        this.statistics = statistics;
+        compiler.setStatistics(statistics);
+    }
+
+    /**
+     * Generate the drivers and compile them.
+     *
+     * @return {@code true} if every part has been compiled
+     */
+    boolean compileParts() {
+        log.println("============================================Part compile start============================================");
+        long startNanos = System.nanoTime();
+        List<File> drivers = generateDrivers();
+        if (drivers == null) return false;
+        if (drivers.isEmpty()) {
+            log.println(Logger.LOW, "No part to compile.");
+            return true;
+        }
+        int failures = compiler.compile(drivers);
+        statistics.phase("part compile").stop(startNanos);
+        log.println(Logger.LOW, "{} part(s) compiled, {} failed.", drivers.size() - failures, failures);
+        return failures == 0;
+    }
+
+    /**
+     * Stop the compilation of all the parts.
+     */
+    void destroy() {
+        compiler.destroy();
+    }
+
+    /**
+     * Read the main file once, and write a driver for every part which has any trimmed file in the main file.
+     *
+     * @return the drivers, or {@code null} if the main file could not be read
+     */
+    private List<File> generateDrivers() {
+        List<String> head = new ArrayList<>();
+        List<String> inputs = new ArrayList<>();
+        List<String> tail = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mainFile), "UTF-8"));
+            List<String> current = head;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().startsWith("%!!!ContentEnd")) current = tail;
+                current.add(line);
+                if (line.trim().startsWith("%!!!ContentStart")) current = inputs;
+            }
+        } catch (IOException e) {
+            log.printStackTrace(e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.printStackTrace(e);
+                }
+            }
+        }
+        List<File> drivers = new ArrayList<>();
+        File folder = mainFile.getAbsoluteFile().getParentFile();
+        for (File partFolder : partFolders) {
+            // the input lines of a part refer to the trimmed files in its folder
+            String marker = "/" + partFolder.getName() + "/";
+            List<String> partInputs = new ArrayList<>();
+            for (String input : inputs) {
+                if (input.contains(marker)) partInputs.add(input);
+            }
+            if (partInputs.isEmpty()) continue;
+            File driver = new File(folder, DRIVER_PREFIX + partFolder.getName() + ".tex");
+            if (writeDriver(driver, head, partInputs, tail)) drivers.add(driver);
+        }
+        return drivers;
+    }
+
+    private boolean writeDriver(File driver, List<String> head, List<String> inputs, List<String> tail) {
+        File tempFile = AtomicFiles.tempFileFor(driver);
+        BufferedWriter writer = null;
+        boolean completed = false;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            writeLines(writer, head);
+            writeLines(writer, inputs);
+            writeLines(writer, tail);
+            completed = true;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    completed = false;
+                    log.printStackTrace(e);
+                }
+            }
+        }
+        try {
+            if (completed) {
+                AtomicFiles.replace(tempFile, driver);
+                if (Logger.isEnabled(Logger.MEDIUM)) {
+                    log.println(Logger.MEDIUM, "Driver: {} generated with {} file(s).", driver.getName(),
+                            inputs.size());
+                }
+                return true;
+            }
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        }
+        AtomicFiles.discard(tempFile);
+        return false;
+    }
+
+    private void writeLines(BufferedWriter writer, List<String> lines) throws IOException {
+        for (String line : lines) {
+            writer.write(line);
+            writer.write("\n");
+        }
+    }
+}
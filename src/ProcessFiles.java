@@ -1,23 +1,37 @@
 import javax.swing.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 class ProcessFiles implements Runnable {
     private final String headerFileName = "header.tex";
     private final String indexContentFilename = "indexcontent.tex";
+    private final String manifestFileName = "parts.manifest";
     private File mainFile;
     private File figureFolder;
     private File partFolder;
     private File headerFile;
     private File indexContentFile;
+    private File manifestFile;
     private List<File> partFolders;
     private SimpleTexProcessProgram mainWindow;
     private final Logger log;
-    private Process process;
+    private volatile ProcessRunner runner;
+    private String xelatexExecutable = System.getProperty("xelatex.executable", "xelatex");
+    private String makeindexExecutable = System.getProperty("makeindex.executable", "makeindex");
+    private boolean useMakeindex = "makeindex".equals(System.getProperty("index.engine"));
     private boolean needArrange;
     private boolean deleteDuplicated;
+    private final RunStatistics statistics = new RunStatistics();
+    private FigureFolderSnapshot figureSnapshot;
+    private TexProcess texProcess;
+    private volatile PartCompiler partCompiler;
+    private volatile FigureListGenerator figureListGenerator;
+    private boolean keepAuxFiles = false;
 
     ProcessFiles(String mainFilePath, String figFolderPath, boolean needArrange, boolean deleteDuplicated) {
         this.mainFile = new File(mainFilePath);
@@ -46,6 +60,7 @@ class ProcessFiles implements Runnable {
         partFolders.add(new File(partFolder.getPath() + File.separator + "Series-03"));
         partFolders.add(new File(partFolder.getPath() + File.separator + "UnCategorized"));
         indexContentFile = new File(partFolder.getPath() + File.separator + indexContentFilename);
+        manifestFile = new File(partFolder.getParent(), manifestFileName);
     }
 
     /**
@@ -53,22 +68,22 @@ class ProcessFiles implements Runnable {
      *
      * @return {@code true} if all exist, otherwise {@code false}
      */
-    private boolean ensureExistence() {
+    boolean ensureExistence() {
         boolean flag = true;
         if (!headerFile.exists()) {
-            log.println("Header file: " + headerFile.getPath() + " does not exist.");
+            log.println(Logger.LOW, "Header file: {} does not exist.", headerFile);
             flag = false;
         }
         if (!mainFile.exists()) {
-            log.println("Main tex file: " + mainFile.getPath() + " does not exist.");
+            log.println(Logger.LOW, "Main tex file: {} does not exist.", mainFile);
             flag = false;
         }
         if (!partFolder.exists()) {
-            log.println("Part folder: " + partFolder.getPath() + " does not exist.");
+            log.println(Logger.LOW, "Part folder: {} does not exist.", partFolder);
             flag = false;
         }
         if (!figureFolder.exists()) {
-            log.println("Figure folder: " + figureFolder.getPath() + " does not exist.");
+            log.println(Logger.LOW, "Figure folder: {} does not exist.", figureFolder);
             flag = false;
         }
         return flag;
@@ -78,9 +93,12 @@ class ProcessFiles implements Runnable {
      * Stop the process of compilation of the main tex file.
      */
     public void destroyTexCompileProcess() {
-        if (process != null && process.isAlive()) {
-            process.destroy();
-        }
+        ProcessRunner runner = this.runner;
+        if (runner != null) runner.destroy();
+        PartCompiler compiler = partCompiler;
+        if (compiler != null) compiler.destroy();
+        FigureListGenerator generator = figureListGenerator;
+        if (generator != null) generator.destroy();
     }
 
     @Override
@@ -88,37 +106,278 @@ class ProcessFiles implements Runnable {
         if (ensureExistence()) {
             mainWindow.lockComponents();
             Logger.setLogLevel(Logger.LOW);
-            if (needArrange) {
-                AsyFileArrange arrange = new AsyFileArrange(figureFolder);
-                if (deleteDuplicated) {
-                    boolean flag = arrange.listDuplicateFiles();
-                    if (flag) {
-                        int result = JOptionPane.showConfirmDialog(mainWindow.getMainFrame(),
-                                "检测到重复的文件，是否删除重复文件，只保留同名文件中最后更新的文件？", "检测完成",
-                                JOptionPane.YES_NO_OPTION);
-                        if (result == JOptionPane.YES_OPTION) {
-                            arrange.removeDuplicatedFilesByLastModified();
-                        }
-                    }
+            try {
+                arrangeFigures(() -> JOptionPane.showConfirmDialog(mainWindow.getMainFrame(),
+                        "检测到重复的文件，是否删除内容相同的重复文件，只保留同名文件中最后更新的文件？", "检测完成",
+                        JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION);
+                merge(getInputFiles());
+                int result = JOptionPane.showConfirmDialog(mainWindow.getMainFrame(),
+                        "合并已完成，是否编译文件" + mainFile.getName() + "?", "合并完成", JOptionPane.YES_NO_OPTION);
+                if (result == JOptionPane.YES_OPTION) {
+                    compile();
+                    Cancellation.check();
+                    JOptionPane.showMessageDialog(mainWindow.getMainFrame(), "已全部完成。", "已完成",
+                            JOptionPane.INFORMATION_MESSAGE);
                 }
-                arrange.arrangeAsyFiles();
+            } catch (CancellationException e) {
+                log.println("Process has been terminated, the files done so far are kept for the next run.");
+            } finally {
+                report();
+                mainWindow.unlockComponents();
             }
-            ArrayList<File> inputRawTexFiles = getInputFiles();
-            TexProcess texProcess = new TexProcess(inputRawTexFiles, mainFile, figureFolder, headerFile, partFolders);
-            texProcess.process();
-            int result = JOptionPane.showConfirmDialog(mainWindow.getMainFrame(),
-                    "合并已完成，是否编译文件" + mainFile.getName() + "?", "合并完成", JOptionPane.YES_NO_OPTION);
-            if (result == JOptionPane.YES_OPTION) {
-                deleteTempFiles();
-                compileMainFile();
-                makeIndex();
-                generateIndexContent();
-                compileMainFile();
-                JOptionPane.showMessageDialog(mainWindow.getMainFrame(), "已全部完成。", "已完成",
-                        JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    /**
+     * Arrange the asy files in figure folder if needed. The duplicated files are listed first if needed, and removed
+     * if {@code removeDuplicated} answers yes.
+     *
+     * @param removeDuplicated decides whether the duplicated files should be removed, asked only if there are
+     *                         duplicated files
+     */
+    void arrangeFigures(BooleanSupplier removeDuplicated) {
+        if (needArrange) {
+            AsyFileArrange arrange = new AsyFileArrange(figureFolder);
+            arrange.setStatistics(statistics);
+            arrange.setSnapshot(getFigureSnapshot());
+            if (deleteDuplicated) {
+                long startNanos = System.nanoTime();
+                boolean flag = arrange.listDuplicateFiles();
+                statistics.phase("duplicates").stop(startNanos);
+                if (flag && removeDuplicated.getAsBoolean()) {
+                    startNanos = System.nanoTime();
+                    arrange.removeDuplicatedFilesByLastModified();
+                    statistics.phase("duplicates").stop(startNanos);
+                }
             }
-            mainWindow.unlockComponents();
+            long startNanos = System.nanoTime();
+            arrange.arrangeAsyFiles();
+            statistics.phase("arrange").stop(startNanos);
+        }
+    }
+
+    /**
+     * Compile the asy files whose pdf file is missing or older than the asy file, see {@link AsyCompiler}.
+     *
+     * @param executable path of the asy executable, {@code null} for the default one
+     * @return count of figures which could not be compiled
+     */
+    int buildFigures(String executable) {
+        AsyCompiler compiler = new AsyCompiler(figureFolder);
+        if (executable != null) compiler.setExecutable(executable);
+        compiler.setSnapshot(getFigureSnapshot());
+        compiler.setStatistics(statistics);
+        return compiler.compileStaleFigures();
+    }
+
+    /**
+     * Write the list of all the figures, {@code figurelist.tex} next to the main file, and compile the documents of
+     * the list which are out of date, see {@link FigureListGenerator}.
+     *
+     * @param shardSize   about how many figures a shard has, 0 for one shard per folder, negative for a single document
+     * @param compile     whether the documents out of date should be compiled
+     * @param parallelism maximum count of documents compiled at the same time
+     * @return count of documents which could not be compiled
+     */
+    int generateFigureList(int shardSize, boolean compile, int parallelism) {
+        long startNanos = System.nanoTime();
+        FigureListGenerator generator = new FigureListGenerator(new File(mainFile.getAbsoluteFile().getParentFile(),
+                "figurelist.tex"), figureFolder, false, false);
+        generator.setSnapshot(getFigureSnapshot());
+        generator.setStatistics(statistics);
+        generator.setShardSize(shardSize);
+        generator.setParallelism(parallelism);
+        generator.generateFigureList();
+        statistics.phase("figure list").stop(startNanos);
+        if (!compile) return 0;
+        figureListGenerator = generator;
+        try {
+            startNanos = System.nanoTime();
+            int failures = generator.compileFigureList();
+            statistics.phase("figure list compile").stop(startNanos);
+            return failures;
+        } finally {
+            figureListGenerator = null;
+        }
+    }
+
+    /**
+     * Walk the figure folder once for the whole run. The snapshot is shared by the arrangement, the figure build and
+     * the merge, the changes made by the arrangement and the figure build are applied to it.
+     *
+     * @return snapshot of the figure folder
+     */
+    private FigureFolderSnapshot getFigureSnapshot() {
+        if (figureSnapshot == null) {
+            long startNanos = System.nanoTime();
+            figureSnapshot = FigureFolderSnapshot.take(figureFolder);
+            statistics.phase("figure walk").stop(startNanos);
+        }
+        return figureSnapshot;
+    }
+
+    /**
+     * Merge the raw tex files into the main file.
+     *
+     * @param inputRawTexFiles raw tex files
+     * @return count of warnings of the merge
+     */
+    int merge(List<File> inputRawTexFiles) {
+        texProcess = new TexProcess(inputRawTexFiles, mainFile, figureFolder, headerFile, partFolders);
+        texProcess.setParallelism(Runtime.getRuntime().availableProcessors());
+        texProcess.setManifestFile(manifestFile);
+        texProcess.setStatistics(statistics);
+        texProcess.setFigureSnapshot(getFigureSnapshot());
+        texProcess.process();
+        return texProcess.getWarningCount();
+    }
+
+    /**
+     * Compile every part of the book by its own driver document, several parts at the same time, see
+     * {@link PartCompiler}. The whole book is compiled afterwards if {@code assemble} is set.
+     *
+     * @param parallelism maximum count of parts compiled at the same time
+     * @param assemble    whether the whole book should be compiled after the parts
+     * @return {@code true} if every compile succeeded
+     */
+    boolean compileParts(int parallelism, boolean assemble) {
+        PartCompiler compiler = new PartCompiler(mainFile, partFolders);
+        compiler.setParallelism(parallelism);
+        compiler.setStatistics(statistics);
+        partCompiler = compiler;
+        boolean succeeded;
+        try {
+            succeeded = compiler.compileParts();
+        } finally {
+            partCompiler = null;
+        }
+        if (assemble) succeeded &= compile();
+        return succeeded;
+    }
+
+    /**
+     * Keep the merged book up to date until the thread is interrupted, see {@link MergeWatcher}. The merge of this
+     * run is kept in memory with its figure catalog, the raw files are merged first if they have not been merged yet.
+     *
+     * @param inputFiles supplies the raw tex files, asked again whenever a tex file is changed or created
+     */
+    void watch(Supplier<List<File>> inputFiles) {
+        if (texProcess == null) merge(inputFiles.get());
+        MergeWatcher watcher = new MergeWatcher(texProcess, getFigureSnapshot(), mainFile, headerFile, figureFolder,
+                inputFiles);
+        try {
+            watcher.watch();
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        } catch (InterruptedException e) {
+            log.println("Watch has been terminated.");
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            log.println("Watch has been terminated.");
+        }
+    }
+
+    /**
+     * Keep the aux files of the main file between runs, so that a compile starts from the output of the last one and
+     * only the passes whose input changed are run again, see {@link #compile()}. The main file is compiled from
+     * scratch by default.
+     *
+     * @param keepAuxFiles whether the aux files should be kept
+     */
+    void setKeepAuxFiles(boolean keepAuxFiles) {
+        this.keepAuxFiles = keepAuxFiles;
+    }
+
+    /**
+     * Compile the main file from scratch: compile it, generate the index, and compile it again.
+     * <p>
+     * If the aux files are kept, the first compile reads the {@code .aux} and {@code .toc} files and the index content
+     * of the last run instead. The index is generated again only if the {@code .idx} file has been changed by the
+     * compile, and the second compile is run only if the {@code .aux} or {@code .toc} file or the index content has
+     * been changed, since otherwise it would read the same files as the first one.
+     *
+     * @return {@code true} if every step succeeded
+     */
+    boolean compile() {
+        if (!keepAuxFiles) deleteTempFiles();
+        File indexFile = new File(mainFile.getPath().replace(".tex", ".idx"));
+        File indexOutputFile = new File(mainFile.getPath().replace(".tex", ".ind"));
+        File auxFile = new File(mainFile.getPath().replace(".tex", ".aux"));
+        File tocFile = new File(mainFile.getPath().replace(".tex", ".toc"));
+        String indexHash = Digests.hashOrNull(indexFile, log);
+        String auxHash = Digests.hashOrNull(auxFile, log);
+        String tocHash = Digests.hashOrNull(tocFile, log);
+        boolean succeeded = runPhase("compile", mainFile, () -> compileMainFile() == 0);
+        if (!keepAuxFiles) {
+            succeeded &= generateIndex(indexFile, indexOutputFile);
+            succeeded &= runPhase("recompile", mainFile, () -> compileMainFile() == 0);
+            return succeeded;
+        }
+        boolean recompile = !Objects.equals(auxHash, Digests.hashOrNull(auxFile, log))
+                || !Objects.equals(tocHash, Digests.hashOrNull(tocFile, log));
+        if (!indexContentFile.exists() || !Objects.equals(indexHash, Digests.hashOrNull(indexFile, log))) {
+            String indexContentHash = Digests.hashOrNull(indexContentFile, log);
+            succeeded &= generateIndex(indexFile, indexOutputFile);
+            recompile |= !Objects.equals(indexContentHash, Digests.hashOrNull(indexContentFile, log));
+        } else {
+            log.println(Logger.LOW, "Index entries are not changed, the index is not generated again.");
+        }
+        if (recompile) {
+            succeeded &= runPhase("recompile", mainFile, () -> compileMainFile() == 0);
+        } else {
+            log.println(Logger.LOW, "Aux files are not changed, the second compile is skipped.");
         }
+        return succeeded;
+    }
+
+    /**
+     * Generate the index content from the {@code .idx} file by {@link IndexEngine}, or by {@code makeindex} and
+     * {@link #generateIndexContent()} if the system property {@code index.engine} is {@code makeindex}.
+     *
+     * @param indexFile       the {@code .idx} file
+     * @param indexOutputFile the {@code .ind} file written by {@code makeindex}
+     * @return {@code true} if the index content has been generated
+     */
+    private boolean generateIndex(File indexFile, File indexOutputFile) {
+        if (!useMakeindex) {
+            log.println("============================================Generating index file============================================");
+            return runPhase("index", indexFile, () -> new IndexEngine().generate(indexFile, indexContentFile));
+        }
+        boolean succeeded = runPhase("makeindex", indexFile, () -> makeIndex() == 0);
+        succeeded &= runPhase("index content", indexOutputFile, this::generateIndexContent);
+        return succeeded;
+    }
+
+    /**
+     * Run a step of the compilation and record it as a phase of the run statistics. A failed step is recorded as a
+     * warning of the phase.
+     *
+     * @param name  name of the phase
+     * @param input the file read by the step
+     * @param step  the step, which answers whether it succeeded
+     * @return {@code true} if the step succeeded
+     * @throws CancellationException if the run has been cancelled before the step
+     */
+    private boolean runPhase(String name, File input, BooleanSupplier step) {
+        Cancellation.check();
+        RunStatistics.Phase phase = statistics.phase(name);
+        long startNanos = System.nanoTime();
+        boolean succeeded = step.getAsBoolean();
+        phase.stop(startNanos);
+        phase.record(input.length(), 0, succeeded ? 0 : 1);
+        return succeeded;
+    }
+
+    /**
+     * Print the statistics of the run to the log and write them to the JSON report next to the main file, which is
+     * named after the main file with the extension {@code .stats.json}.
+     */
+    void report() {
+        statistics.printSummary(log);
+        String mainFileName = mainFile.getName();
+        int extension = mainFileName.lastIndexOf('.');
+        String reportFileName = (extension == -1 ? mainFileName : mainFileName.substring(0, extension)) + ".stats.json";
+        statistics.writeJson(new File(mainFile.getAbsoluteFile().getParentFile(), reportFileName), log);
     }
 
     private void deleteTempFiles() {
@@ -127,79 +386,100 @@ class ProcessFiles implements Runnable {
         for (File file : currentFolder.listFiles()) {
             if (file.isFile() && file.getName().startsWith(mainFileNameWithoutExtension) && !file.getName().endsWith(".tex")) {
                 if (file.delete()) {
-                    log.println("Delete file: " + file.getName());
+                    log.println(Logger.LOW, "Delete file: {}", file.getName());
                 }
             }
         }
     }
 
     /**
-     * Compile the main tex file. Execute the command by {@code Runtime.getRuntime().exec(String)}, and use
-     * {@code Process.getInputStream} to get the information the executed command print to the command line.
+     * Compile the main tex file by {@code xelatex} in non-stop mode, in the folder of the main file. The executable is
+     * {@code xelatex} on the path by default, which could be changed by the system property
+     * {@code xelatex.executable}.
+     *
+     * @return exit value of the compiler, or -1 if it could not be run to the end
      */
-    private void compileMainFile() {
+    private int compileMainFile() {
         log.println("============================================Compile start============================================");
-        BufferedReader reader = null;
-        try {
-            process = Runtime.getRuntime().exec("xelatex " + mainFile.getPath());
-            reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                log.println(line);
-            }
-            process.waitFor();
-        } catch (IOException e) {
-            log.printStackTrace(e);
-        } catch (InterruptedException e) {
-            log.println("Compile has been terminated.");
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    log.printStackTrace(e);
-                }
-            }
+        ProcessRunner runner = new ProcessRunner(xelatexExecutable, "-interaction=nonstopmode", mainFile.getName());
+        runner.setDirectory(mainFile.getAbsoluteFile().getParentFile());
+        ProcessRunner.Result result = runTool(runner, "Compile");
+        if (result == null) return -1;
+        if (result.getStatus() == ProcessRunner.Status.EXITED) {
+            log.println(Logger.LOW, "Compile: {} page(s), {} error(s), {} warning(s).", result.getPages(),
+                    result.getErrors().size(), result.getWarnings().size());
         }
+        return result.getExitValue();
     }
 
     /**
-     * Execute {@code makeindex} program to generate the index information of the main tex file.
+     * Execute {@code makeindex} program to generate the index information of the main tex file. The executable is
+     * {@code makeindex} on the path by default, which could be changed by the system property
+     * {@code makeindex.executable}.
+     *
+     * @return exit value of makeindex, or -1 if it could not be run to the end
      */
-    private void makeIndex() {
+    private int makeIndex() {
         log.println("============================================Makeindex start============================================");
-        BufferedReader reader = null;
+        ProcessRunner runner = new ProcessRunner(makeindexExecutable,
+                mainFile.getName().replace(".tex", ".idx"));
+        runner.setDirectory(mainFile.getAbsoluteFile().getParentFile());
+        ProcessRunner.Result result = runTool(runner, "Makeindex");
+        return result == null ? -1 : result.getExitValue();
+    }
+
+    /**
+     * Run a tool with its output written to the log, and log how it ended and the errors it printed. The tool could
+     * be stopped by {@link #destroyTexCompileProcess()} while it runs.
+     *
+     * @param runner the tool
+     * @param name   name of the tool in the log
+     * @return what the tool did, or {@code null} if it could not be started or the thread is interrupted
+     */
+    private ProcessRunner.Result runTool(ProcessRunner runner, String name) {
+        runner.setOutput(log::println);
+        this.runner = runner;
         try {
-            process = Runtime.getRuntime()
-                    .exec("makeindex " + mainFile.getPath().replace(".tex", ".idx"));
-            reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                log.println(line);
+            ProcessRunner.Result result = runner.run();
+            switch (result.getStatus()) {
+                case TIMED_OUT:
+                    log.println(Logger.LOW, "WARNING--{} is killed since it runs for too long: {}", name,
+                            runner.getCommandLine());
+                    break;
+                case IDLE:
+                    log.println(Logger.LOW, "WARNING--{} is killed since it prints nothing for too long: {}", name,
+                            runner.getCommandLine());
+                    break;
+                case DESTROYED:
+                    log.println(name + " has been terminated.");
+                    break;
+                default:
+                    for (ProcessRunner.Message error : result.getErrors()) {
+                        log.println(Logger.LOW, "Error--{}", error);
+                    }
             }
-            process.waitFor();
+            return result;
         } catch (IOException e) {
-            log.printStackTrace(e);
+            log.println(Logger.LOW, "Can not run: {} ({})", runner.getCommandLine(), e.getMessage());
         } catch (InterruptedException e) {
-            log.println("Makeindex has been terminated.");
+            log.println(name + " has been terminated.");
+            Thread.currentThread().interrupt();
         } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    log.printStackTrace(e);
-                }
-            }
+            this.runner = null;
         }
+        return null;
     }
 
     /**
      * Generate index file content using the output of {@code makeindex} program.
+     *
+     * @return {@code true} if the index file content has been generated
      */
-    private void generateIndexContent() {
+    private boolean generateIndexContent() {
         log.println("============================================Generating index file============================================");
         BufferedReader reader = null;
         BufferedWriter writer = null;
+        boolean succeeded = false;
         try {
             reader = new BufferedReader(new InputStreamReader(
                     new FileInputStream(mainFile.getPath().replace(".tex", ".ind")), "UTF-8"
@@ -216,8 +496,9 @@ class ProcessFiles implements Runnable {
             }
             writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexContentFile), "UTF-8"));
             writer.write(indexContent.toString());
+            succeeded = true;
         } catch (FileNotFoundException e) {
-            log.println("Index file " + mainFile.getPath().replace(".tex", ".ind") + "not found.");
+            log.println(Logger.LOW, "Index file {}not found.", mainFile.getPath().replace(".tex", ".ind"));
         } catch (IOException e) {
             log.printStackTrace(e);
         } finally {
@@ -236,6 +517,7 @@ class ProcessFiles implements Runnable {
                 }
             }
         }
+        return succeeded;
     }
 
     /**
@@ -244,15 +526,34 @@ class ProcessFiles implements Runnable {
      * @return a list of tex files.
      */
     private ArrayList<File> getInputFiles() {
-        ArrayList<File> inputRawTexFiles = new ArrayList<>();
+        List<File> files = new ArrayList<>();
         Enumeration<String> enumeration = mainWindow.getListModel().elements();
-        Pattern pattern = Pattern.compile("^(Differential|Integral|Series)\\S*(\\d{2})");
         while (enumeration.hasMoreElements()) {
-            File file = new File(enumeration.nextElement());
+            files.add(new File(enumeration.nextElement()));
+        }
+        mainWindow.getListModel().removeAllElements();
+        return filterInputFiles(files, mainWindow.getIgnoreWrongFilenameCheckBox().isSelected(),
+                mainWindow.getAsyArrangeCheckBox().isSelected());
+    }
+
+    /**
+     * Filter the raw tex files which should be merged. Trimmed files are dropped, so are the files whose name does
+     * not follow the naming rule unless {@code ignoreWrongFilename} is set.
+     *
+     * @param files               candidate tex files
+     * @param ignoreWrongFilename keep the files whose name does not follow the naming rule
+     * @param sort                sort the files by part and ordinal number, and remove the files with the same
+     *                            part and ordinal number
+     * @return a list of tex files.
+     */
+    ArrayList<File> filterInputFiles(List<File> files, boolean ignoreWrongFilename, boolean sort) {
+        ArrayList<File> inputRawTexFiles = new ArrayList<>();
+        Pattern pattern = Pattern.compile("^(Differential|Integral|Series)\\S*(\\d{2})");
+        for (File file : files) {
             if (!file.exists()) {
-                log.println("WARNING--tex file not found: " + file.getName(), Logger.LOW);
+                log.println(Logger.LOW, "WARNING--tex file not found: {}", file.getName());
             } else {
-                if (!mainWindow.getIgnoreWrongFilenameCheckBox().isSelected()) {
+                if (!ignoreWrongFilename) {
                     Matcher matcher = pattern.matcher(file.getName());
                     if (matcher.find() && !file.getName().endsWith("-trim.tex")) {
                         inputRawTexFiles.add(file);
@@ -262,7 +563,7 @@ class ProcessFiles implements Runnable {
                 }
             }
         }
-        if (!inputRawTexFiles.isEmpty() && mainWindow.getAsyArrangeCheckBox().isSelected()) {
+        if (!inputRawTexFiles.isEmpty() && sort) {
             Comparator<File> fileComparator = (File file1, File file2) -> {
                 char c1 = file1.getName().charAt(0);
                 char c2 = file2.getName().charAt(0);
@@ -289,7 +590,6 @@ class ProcessFiles implements Runnable {
                 }
             }
         }
-        mainWindow.getListModel().removeAllElements();
         return inputRawTexFiles;
     }
 }
\ No newline at end of file
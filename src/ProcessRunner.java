@@ -0,0 +1,307 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Run an external program, such as {@code xelatex}, {@code makeindex} or {@code asy}, and parse what it prints.
+ * The command is given as a list of arguments, so a path with spaces is passed as a single argument. The standard
+ * input of the program is closed at once, so a program which asks for input on an error reads the end of input and
+ * stops instead of waiting forever. The standard output and the standard error are drained at the same time by two
+ * threads, so the program is never blocked by a full pipe.
+ * <p>
+ * A program which runs longer than the timeout, or prints nothing for longer than the idle timeout, is killed
+ * together with all the processes it started. The timeouts in seconds are set by the system properties
+ * {@code process.timeout} (default 1800) and {@code process.idleTimeout} (default 300), or by the setters.
+ * <p>
+ * Every line printed by the program is parsed as a tex log: the errors, the warnings and the count of pages written
+ * are collected into the {@link Result}.
+ */
+final class ProcessRunner {
+    private static final long DEFAULT_TIMEOUT_SECONDS = Math.max(1, Long.getLong("process.timeout", 1800));
+    private static final long DEFAULT_IDLE_TIMEOUT_SECONDS = Math.max(1, Long.getLong("process.idleTimeout", 300));
+    private static final long POLL_MILLIS = 500;
+    private static final long DRAIN_MILLIS = 5000;
+    // an error of tex starts with "!", or "file:line: message" if the file and line of errors are asked
+    private static final Pattern FILE_LINE_ERROR_PATTERN = Pattern.compile("^(.+\\.tex):(\\d+): (.*)$");
+    // the line of an error, as "l.12 \foo"
+    private static final Pattern ERROR_LINE_PATTERN = Pattern.compile("^l\\.(\\d+)(.*)$");
+    // "LaTeX Warning: ...", "Package hyperref Warning: ..." or "## Warning (input = ...)" of makeindex
+    private static final Pattern WARNING_PATTERN = Pattern.compile("(^|\\s)Warning:|^## Warning");
+    private static final Pattern PAGES_PATTERN = Pattern.compile("^Output written on .* \\((\\d+) pages?");
+    private final List<String> command;
+    private File directory;
+    private long timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+    private long idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+    private Consumer<String> output = line -> {
+    };
+    private volatile Process process;
+    private volatile boolean destroyed = false;
+
+    /**
+     * @param command the program and its arguments
+     */
+    ProcessRunner(String... command) {
+        this.command = Arrays.asList(command);
+    }
+
+    /**
+     * Set the working folder of the program, which is the working folder of this program by default.
+     *
+     * @param directory the working folder
+     */
+    void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Set how long the program could run.
+     *
+     * @param timeoutSeconds wall-clock timeout in seconds
+     */
+    void setTimeout(long timeoutSeconds) {
+        this.timeoutSeconds = Math.max(1, timeoutSeconds);
+    }
+
+    /**
+     * Set how long the program could run without printing anything.
+     *
+     * @param idleTimeoutSeconds idle timeout in seconds
+     */
+    void setIdleTimeout(long idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = Math.max(1, idleTimeoutSeconds);
+    }
+
+    /**
+     * Set where the lines printed by the program go, both the standard output and the standard error. The lines are
+     * handed over by the two drain threads, so the consumer must be thread safe.
+     *
+     * @param output consumer of the printed lines
+     */
+    void setOutput(Consumer<String> output) {
+        this.output = output;
+    }
+
+    /**
+     * @return the program and its arguments, separated by spaces
+     */
+    String getCommandLine() {
+        return String.join(" ", command);
+    }
+
+    /**
+     * Run the program and wait until it exits, or is killed on a timeout.
+     *
+     * @return what the program did
+     * @throws IOException          if the program could not be started
+     * @throws InterruptedException if the thread is interrupted, the program has been killed then
+     */
+    Result run() throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        if (directory != null) builder.directory(directory);
+        Result result = new Result();
+        Process process = builder.start();
+        this.process = process;
+        AtomicLong lastOutputNanos = new AtomicLong(System.nanoTime());
+        Thread stdout = drain(process.getInputStream(), result, lastOutputNanos);
+        Thread stderr = drain(process.getErrorStream(), result, lastOutputNanos);
+        try {
+            process.getOutputStream().close();
+            long startNanos = System.nanoTime();
+            long timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+            // destroyed before the process has been published, it would not be killed by destroy
+            if (destroyed) result.status = Status.DESTROYED;
+            while (result.status == Status.EXITED && !process.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                long nanos = System.nanoTime();
+                if (destroyed) {
+                    result.status = Status.DESTROYED;
+                } else if (nanos - startNanos > timeoutNanos) {
+                    result.status = Status.TIMED_OUT;
+                } else if (nanos - lastOutputNanos.get() > idleTimeoutNanos) {
+                    result.status = Status.IDLE;
+                }
+            }
+        } finally {
+            if (process.isAlive()) killTree(process);
+            this.process = null;
+        }
+        // the pipes are closed when the program and its children are gone, a process left behind is not waited for
+        stdout.join(DRAIN_MILLIS);
+        stderr.join(DRAIN_MILLIS);
+        if (result.status == Status.EXITED) {
+            result.exitValue = process.waitFor();
+            if (destroyed) result.status = Status.DESTROYED;
+        }
+        return result;
+    }
+
+    /**
+     * Kill the program and all the processes it started, the running {@code run} returns with status
+     * {@link Status#DESTROYED}.
+     */
+    void destroy() {
+        destroyed = true;
+        Process process = this.process;
+        if (process != null) killTree(process);
+    }
+
+    /**
+     * Kill the descendants of a process before the process itself, since the children of a dead process could not be
+     * found from it any more.
+     */
+    private static void killTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private Thread drain(InputStream stream, Result result, AtomicLong lastOutputNanos) {
+        Thread thread = new Thread(() -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lastOutputNanos.set(System.nanoTime());
+                    result.parse(line);
+                    output.accept(line);
+                }
+            } catch (IOException e) {
+                // the pipe is closed when the program is killed
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do, the program is done
+                }
+            }
+        }, "drain " + command.get(0));
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * How the program ended.
+     */
+    enum Status {
+        /**
+         * the program exited by itself
+         */
+        EXITED,
+        /**
+         * the program has been killed since it ran longer than the timeout
+         */
+        TIMED_OUT,
+        /**
+         * the program has been killed since it printed nothing for longer than the idle timeout
+         */
+        IDLE,
+        /**
+         * the program has been killed by {@code destroy}
+         */
+        DESTROYED
+    }
+
+    /**
+     * An error printed by the program.
+     */
+    static final class Message {
+        private final String text;
+        private int line;
+
+        private Message(String text, int line) {
+            this.text = text;
+            this.line = line;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        /**
+         * @return the line of the tex file where the error happened, or -1 if it is not known
+         */
+        int getLine() {
+            return line;
+        }
+
+        @Override
+        public String toString() {
+            return line == -1 ? text : "line " + line + ": " + text;
+        }
+    }
+
+    /**
+     * What the program did: how it ended, its exit value, and the errors, warnings and pages it printed.
+     */
+    static final class Result {
+        private final List<Message> errors = new ArrayList<>();
+        private final List<String> warnings = new ArrayList<>();
+        private volatile Status status = Status.EXITED;
+        private int exitValue = -1;
+        private int pages = -1;
+        private Message lastError;
+
+        /**
+         * Parse a line printed by the program. The two drain threads parse at the same time.
+         */
+        private synchronized void parse(String line) {
+            Matcher matcher;
+            if (line.startsWith("!")) {
+                lastError = new Message(line.substring(1).trim(), -1);
+                errors.add(lastError);
+            } else if (lastError != null && lastError.line == -1
+                    && (matcher = ERROR_LINE_PATTERN.matcher(line)).matches()) {
+                lastError.line = Integer.parseInt(matcher.group(1));
+            } else if ((matcher = FILE_LINE_ERROR_PATTERN.matcher(line)).matches()) {
+                lastError = new Message(matcher.group(3), Integer.parseInt(matcher.group(2)));
+                errors.add(lastError);
+            } else if (WARNING_PATTERN.matcher(line).find()) {
+                warnings.add(line.trim());
+            } else if ((matcher = PAGES_PATTERN.matcher(line)).find()) {
+                pages = Integer.parseInt(matcher.group(1));
+            } else if (line.startsWith("No pages of output.")) {
+                pages = 0;
+            }
+        }
+
+        Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return exit value of the program, or -1 if it has been killed
+         */
+        int getExitValue() {
+            return exitValue;
+        }
+
+        /**
+         * @return {@code true} if the program exited by itself with exit value 0
+         */
+        boolean succeeded() {
+            return status == Status.EXITED && exitValue == 0;
+        }
+
+        synchronized List<Message> getErrors() {
+            return Collections.unmodifiableList(new ArrayList<>(errors));
+        }
+
+        synchronized List<String> getWarnings() {
+            return Collections.unmodifiableList(new ArrayList<>(warnings));
+        }
+
+        /**
+         * @return count of pages written by tex, or -1 if tex did not tell
+         */
+        synchronized int getPages() {
+            return pages;
+        }
+    }
+}
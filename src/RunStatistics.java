@@ -0,0 +1,164 @@
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall time and throughput of every phase of a run: arranging the figures, merging the tex files, compiling the main
+ * file and generating the index. The counters of a phase could be updated by several worker threads at the same
+ * time. At the end of a run a summary table is printed to the log, and a JSON report is written for the tools which
+ * track the runs over time.
+ */
+final class RunStatistics {
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Get the phase with certain name, it is created at the first call. The phases are reported in the order they
+     * are created.
+     *
+     * @param name name of the phase
+     * @return the phase
+     */
+    synchronized Phase phase(String name) {
+        return phases.computeIfAbsent(name, Phase::new);
+    }
+
+    private synchronized List<Phase> getPhases() {
+        return new ArrayList<>(phases.values());
+    }
+
+    /**
+     * Print the summary table of all the phases.
+     *
+     * @param log logger to print to
+     */
+    void printSummary(Logger log) {
+        log.println("============================================Run statistics============================================");
+        log.println(String.format(Locale.ROOT, "%-16s%12s%8s%14s%10s%10s%12s",
+                "Phase", "Time(ms)", "Files", "Bytes", "Lookups", "Warnings", "KB/s"));
+        for (Phase phase : getPhases()) {
+            log.println(String.format(Locale.ROOT, "%-16s%12.1f%8d%14d%10d%10d%12.1f", phase.name,
+                    phase.getMillis(), phase.files.get(), phase.bytes.get(), phase.figureLookups.get(),
+                    phase.warnings.get(), phase.getBytesPerSecond() / 1024));
+        }
+        log.println(String.format(Locale.ROOT, "%-16s%12.1f", "Total", getTotalMillis()));
+    }
+
+    /**
+     * Write the report of all the phases as JSON. The file is replaced as a whole.
+     *
+     * @param reportFile the report file
+     * @param log        logger to print errors to
+     * @return {@code true} if the report has been written
+     */
+    boolean writeJson(File reportFile, Logger log) {
+        File tempFile = AtomicFiles.tempFileFor(reportFile);
+        Writer writer = null;
+        boolean completed = false;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            writer.write(toJson());
+            writer.close();
+            writer = null;
+            AtomicFiles.replace(tempFile, reportFile);
+            completed = true;
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    log.printStackTrace(e);
+                }
+            }
+            if (!completed) AtomicFiles.discard(tempFile);
+        }
+        return completed;
+    }
+
+    private String toJson() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ROOT);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"started\": \"").append(format.format(new Date(startTime))).append("\",\n");
+        sb.append("  \"totalMillis\": ").append(String.format(Locale.ROOT, "%.3f", getTotalMillis())).append(",\n");
+        sb.append("  \"phases\": [");
+        List<Phase> phaseList = getPhases();
+        for (int i = 0; i < phaseList.size(); i++) {
+            Phase phase = phaseList.get(i);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\"name\": \"").append(phase.name).append('"')
+                    .append(", \"millis\": ").append(String.format(Locale.ROOT, "%.3f", phase.getMillis()))
+                    .append(", \"files\": ").append(phase.files.get())
+                    .append(", \"bytes\": ").append(phase.bytes.get())
+                    .append(", \"figureLookups\": ").append(phase.figureLookups.get())
+                    .append(", \"warnings\": ").append(phase.warnings.get())
+                    .append(", \"bytesPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", phase.getBytesPerSecond()))
+                    .append('}');
+        }
+        sb.append(phaseList.isEmpty() ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private double getTotalMillis() {
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+
+    /**
+     * Counters of a single phase. The wall time is measured by the caller around the whole phase, while the files,
+     * bytes, figure lookups and warnings are recorded by the workers one file at a time.
+     */
+    static final class Phase {
+        private final String name;
+        private final AtomicLong elapsedNanos = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong figureLookups = new AtomicLong();
+        private final AtomicLong warnings = new AtomicLong();
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Add the wall time since the given start to the phase.
+         *
+         * @param startNanos start of the measured work, from {@code System.nanoTime()}
+         */
+        void stop(long startNanos) {
+            elapsedNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Record a processed file.
+         *
+         * @param fileBytes    length of the file
+         * @param lookups      count of figure lookups for the file
+         * @param fileWarnings count of warnings found in the file
+         */
+        void record(long fileBytes, int lookups, int fileWarnings) {
+            files.incrementAndGet();
+            bytes.addAndGet(fileBytes);
+            figureLookups.addAndGet(lookups);
+            warnings.addAndGet(fileWarnings);
+        }
+
+        private double getMillis() {
+            return elapsedNanos.get() / 1e6;
+        }
+
+        private double getBytesPerSecond() {
+            long nanos = elapsedNanos.get();
+            return nanos == 0 ? 0 : bytes.get() * 1e9 / nanos;
+        }
+    }
+}
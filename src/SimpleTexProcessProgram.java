@@ -123,6 +123,7 @@ final class SimpleTexProcessProgram {
         initLogFrame();
         setToDefault();
         this.log = Logger.getLog();
+        log.setMaxLines(Integer.getInteger("log.maxLines", 5000));
         log.setLogField(logField);
         Logger.setLogLevel(Logger.LOW);
     }
@@ -214,7 +215,7 @@ final class SimpleTexProcessProgram {
         terminateButton.addActionListener(e -> {
             if (e.getSource() == terminateButton) {
                 if (processThread != null && processThread.isAlive()) {
-                    processFiles.destroyTexCompileProcess();
+                    if (processFiles != null) processFiles.destroyTexCompileProcess();
                     processThread.interrupt();
                 }
             }
@@ -248,7 +249,10 @@ final class SimpleTexProcessProgram {
                 FigureListGenerator figureListGenerator
                         = new FigureListGenerator("figurelist.tex", figTextField.getText(),
                         asyArrangeCheckBox.isSelected(), deleteDuplicatedCheckBox.isSelected());
-                new Thread(figureListGenerator).start();
+                // the figure list is terminated by the same button as the merge
+                processFiles = null;
+                processThread = new Thread(figureListGenerator);
+                processThread.start();
             }
         });
     }
@@ -0,0 +1,92 @@
+/**
+ * The kinds of lines which are rewritten or dropped by the merge, told by the control word the line starts with.
+ * A line is classified by a single scan of its leading characters, so that a line is handed to the one rewrite rule
+ * which may apply instead of being tried by all of them. Most of the lines are prose and only cost the scan.
+ * <p>
+ * The leading characters are skipped the way {@code String.trim} does. The kinds only tell which rule may apply: a
+ * rule still checks the whole line, and the lines of kind {@code OTHER} are never changed by any rule.
+ */
+enum TexLineKind {
+    /**
+     * {@code \chapter{...}}
+     */
+    CHAPTER,
+    /**
+     * {@code \section{...}}
+     */
+    SECTION,
+    /**
+     * {@code \subsection{...}}
+     */
+    SUBSECTION,
+    /**
+     * {@code \includegraphics[...]{...}}
+     */
+    INCLUDEGRAPHICS,
+    /**
+     * <code>&#92;usetikzlibrary{...}</code>
+     */
+    USETIKZLIBRARY,
+    /**
+     * any line starting with {@code \input}
+     */
+    INPUT,
+    /**
+     * any line starting with {@code \title}
+     */
+    TITLE,
+    /**
+     * any line starting with {@code \maketitle}
+     */
+    MAKETITLE,
+    /**
+     * any line starting with {@code \end{document}}
+     */
+    END_DOCUMENT,
+    /**
+     * prose and the other commands
+     */
+    OTHER;
+
+    /**
+     * Classify a line by the control word it starts with.
+     *
+     * @param line a line of tex file
+     * @return kind of the line
+     */
+    static TexLineKind classify(String line) {
+        int length = line.length();
+        int start = 0;
+        while (start < length && line.charAt(start) <= ' ') {
+            start++;
+        }
+        if (start + 1 >= length || line.charAt(start) != '\\') return OTHER;
+        switch (line.charAt(start + 1)) {
+            case 'c':
+                if (line.startsWith("\\chapter{", start)) return CHAPTER;
+                break;
+            case 's':
+                if (line.startsWith("\\section{", start)) return SECTION;
+                if (line.startsWith("\\subsection{", start)) return SUBSECTION;
+                break;
+            case 'i':
+                if (line.startsWith("\\includegraphics[", start)) return INCLUDEGRAPHICS;
+                if (line.startsWith("\\input", start)) return INPUT;
+                break;
+            case 'u':
+                if (line.startsWith("\\usetikzlibrary{", start)) return USETIKZLIBRARY;
+                break;
+            case 't':
+                if (line.startsWith("\\title", start)) return TITLE;
+                break;
+            case 'm':
+                if (line.startsWith("\\maketitle", start)) return MAKETITLE;
+                break;
+            case 'e':
+                if (line.startsWith("\\end{document}", start)) return END_DOCUMENT;
+                break;
+            default:
+        }
+        return OTHER;
+    }
+}
@@ -1,5 +1,9 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -7,18 +11,34 @@ import java.util.regex.Pattern;
 class TexProcess {
     private static final Pattern filenamePattern = Pattern.compile("^(\\s*\\\\includegraphics\\[(width|height)\\s*=\\s*)(\\S+)(\\]\\{)(\\S+)(\\}\\S*\\s*)$");
     private static final Pattern sizePattern = Pattern.compile("/size(\\d+)/");
-    private static final Pattern chapterPattern = Pattern.compile("^(\\s*\\\\chapter)\\{([\\s\\S]+)\\}(\\s*)$");
     private static final Pattern sectionPattern = Pattern.compile("^(\\s*\\\\section)\\{(\\W+)\\}(\\s*)$");
     private static final Pattern subsectionPattern = Pattern.compile("^(\\s*\\\\subsection)\\{(\\W+)\\}(\\s*)$");
     private static final Pattern tikzlibararyPattern = Pattern.compile("^\\\\usetikzlibrary\\{([\\s\\S]+)\\}");
+    /**
+     * Least interval between two checkpoints of the manifest while files are being merged, set by the system property
+     * {@code merge.checkpointMillis}.
+     */
+    private static final long CHECKPOINT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Math.max(0, Long.getLong("merge.checkpointMillis", 1000)));
     private final Logger log;
-    private int warningCount = 0;
+    private final String headerInput;
+    private final AtomicInteger warningCount = new AtomicInteger();
     private List<File> inputRawTexFiles;
     private File mainFile;
     private File figureFolder;
     private File headerFile;
     private List<File> partFolders;
-    private Set<String> tikzLibraries = new HashSet<>();
+    private final Set<String> tikzLibraries = ConcurrentHashMap.newKeySet();
+    private FigureCatalog figureCatalog;
+    private FigureFolderSnapshot figureSnapshot;
+    private int parallelism = 1;
+    private File manifestFile;
+    private BuildManifest manifest;
+    private boolean sharedInputsUnchanged = false;
+    private OutlineCache outlineCache;
+    private final AtomicLong lastCheckpointNanos = new AtomicLong(System.nanoTime());
+    private RunStatistics statistics = new RunStatistics();
+    private final Map<File, OutlineCache.Outline> outlinesByTrimmedFile = new ConcurrentHashMap<>();
 
     TexProcess(List<File> inputRawTexFiles, File mainFile, File figureFolder, File headerFile,
                List<File> partFolders) {
@@ -28,43 +48,447 @@ class TexProcess {
         this.log = Logger.getLog();
         this.headerFile = headerFile;
         this.partFolders = partFolders;
+        this.headerInput = "\\input{" + modifyPath(headerFile.getAbsolutePath()) + "}\n";
         for (File folder : partFolders) {
             if (!folder.exists()) folder.mkdir();
         }
     }
 
+    /**
+     * Set how many files could be trimmed and decorated at the same time. The files are processed one by one in the
+     * calling thread if parallelism is 1, which is the default.
+     *
+     * @param parallelism maximum count of worker threads
+     */
+    void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Enable the incremental merge. The hashes of inputs and outputs are recorded in the manifest file, the raw files
+     * which are not changed since the last run are neither trimmed nor decorated again, as long as the header file
+     * and the figures they refer to are not changed either.
+     * <p>
+     * The outlines of the parsed files are kept in a binary cache next to the manifest, {@code parts.outline} next to
+     * {@code parts.manifest}, see {@link OutlineCache}. When the figures changed, the references of an unchanged file
+     * are resolved from its outline, and only the files referring to a changed figure are decorated again. The
+     * warnings of the references of a skipped file are reported from its outline as well.
+     * <p>
+     * The manifest is also the checkpoint of the merge: it is saved from time to time while the files are merged, and
+     * when the merge is cancelled, so that a merge which has been cancelled or crashed goes on from the files which
+     * are not recorded yet.
+     *
+     * @param manifestFile the manifest file, {@code null} to disable the incremental merge
+     */
+    void setManifestFile(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Share the snapshot of the figure folder taken earlier in the run, instead of walking the folder again.
+     *
+     * @param figureSnapshot snapshot of the figure folder, {@code null} to take one when the figures are indexed
+     */
+    void setFigureSnapshot(FigureFolderSnapshot figureSnapshot) {
+        this.figureSnapshot = figureSnapshot;
+    }
+
+    /**
+     * Replace the raw tex files to merge, which takes effect from the next {@code process} or {@code update}.
+     *
+     * @param inputRawTexFiles raw tex files
+     */
+    void setInputRawTexFiles(List<File> inputRawTexFiles) {
+        this.inputRawTexFiles = inputRawTexFiles;
+    }
+
+    /**
+     * Set the statistics which the phases of the merge are recorded to.
+     *
+     * @param statistics statistics of the current run
+     */
+    void setStatistics(RunStatistics statistics) {
+        this.statistics = statistics;
+    }
+
     /**
      * Execute the process
      */
     public void process() {
         log.println("============================================Merge start============================================");
+        warningCount.set(0);
+        // index the figure folder once, all the figure lookups of this run are answered by the catalog
+        long startNanos = System.nanoTime();
+        indexFigures();
+        if (manifestFile != null) loadManifest();
+        statistics.phase("catalog").stop(startNanos);
         // categorize input files by their prefix
+        Map<File, File> rawTexFolders = getRawTexFolders();
+        // trim and decorate the raw files in one pass
+        Set<File> processedFiles = ConcurrentHashMap.newKeySet();
+        Map<File, List<File>> trimmedTexMap;
+        try {
+            startNanos = System.nanoTime();
+            forEachFile(new ArrayList<>(rawTexFolders.keySet()), (texFile, fileLog) ->
+                    processedFiles.add(mergeTexFile(rawTexFolders.get(texFile), texFile, fileLog)));
+            statistics.phase("merge").stop(startNanos);
+            // decorate the trimmed files left by earlier runs
+            trimmedTexMap = getTrimmedTexMap();
+            List<File> trimmedFiles = new ArrayList<>();
+            for (File folder : partFolders) {
+                for (File trimmedFile : trimmedTexMap.get(folder)) {
+                    if (!processedFiles.contains(trimmedFile)) trimmedFiles.add(trimmedFile);
+                }
+            }
+            startNanos = System.nanoTime();
+            forEachFile(trimmedFiles, this::redecorateTrimmedFile);
+            // every file has been checked, the records of the files which are gone could be dropped
+            if (manifest != null) manifest.prune();
+            if (outlineCache != null) outlineCache.prune();
+        } finally {
+            saveManifest();
+        }
+        statistics.phase("redecorate").stop(startNanos);
+        refreshMainFile(trimmedTexMap);
+        logCompletion();
+    }
+
+    /**
+     * Merge again after some of the inputs changed, for the watch mode. The figure catalog of the last merge is kept
+     * in memory: only the raw files which changed, and the files which refer to a figure whose path or size changed,
+     * are trimmed and decorated again. The input lines of the main file are refreshed if any file has been merged or
+     * the main file itself changed. {@code process} must have been called once before.
+     *
+     * @param changedRawFiles raw files which have been changed or created, the ones which are not merged are ignored
+     * @param changedFigures  files and folders of the figure folder which changed, and whose changes have been
+     *                        applied to the snapshot already
+     * @param mainFileChanged whether the main file changed, its input lines are refreshed if so
+     * @return {@code true} if any file has been written
+     */
+    boolean update(Collection<File> changedRawFiles, Collection<File> changedFigures, boolean mainFileChanged) {
+        warningCount.set(0);
+        Map<File, File> rawTexFolders = getRawTexFolders();
+        Map<File, File> rawFilesByTrimmedFile = new HashMap<>();
+        for (File texFile : rawTexFolders.keySet()) {
+            rawFilesByTrimmedFile.put(getTrimmedFile(rawTexFolders.get(texFile), texFile), texFile);
+        }
+        Set<File> rawFiles = new LinkedHashSet<>();
+        for (File texFile : changedRawFiles) {
+            if (rawTexFolders.containsKey(texFile)) rawFiles.add(texFile);
+        }
+        Map<File, List<File>> trimmedTexMap = getTrimmedTexMap();
+        List<File> trimmedFiles = new ArrayList<>();
+        sharedInputsUnchanged = true;
+        if (!changedFigures.isEmpty()) {
+            long startNanos = System.nanoTime();
+            Set<String> changedNames = figureCatalog.update(figureSnapshot, changedFigures);
+            statistics.phase("catalog").stop(startNanos);
+            if (!changedNames.isEmpty()) {
+                for (File folder : partFolders) {
+                    for (File trimmedFile : trimmedTexMap.get(folder)) {
+                        if (!refersTo(trimmedFile, changedNames)) continue;
+                        File texFile = rawFilesByTrimmedFile.get(trimmedFile);
+                        if (texFile != null) {
+                            rawFiles.add(texFile);
+                        } else {
+                            trimmedFiles.add(trimmedFile);
+                        }
+                    }
+                }
+            }
+        }
+        if (rawFiles.isEmpty() && trimmedFiles.isEmpty() && !mainFileChanged) return false;
+        log.println("============================================Update start============================================");
+        long startNanos = System.nanoTime();
+        try {
+            forEachFile(new ArrayList<>(rawFiles),
+                    (texFile, fileLog) -> mergeTexFile(rawTexFolders.get(texFile), texFile, fileLog));
+            statistics.phase("merge").stop(startNanos);
+            startNanos = System.nanoTime();
+            forEachFile(trimmedFiles, this::redecorateTrimmedFile);
+        } finally {
+            saveManifest();
+        }
+        statistics.phase("redecorate").stop(startNanos);
+        refreshMainFile(getTrimmedTexMap());
+        logCompletion();
+        return true;
+    }
+
+    /**
+     * Check if a trimmed file refers to any of the figures. A file whose outline is not known, neither decorated by
+     * this process nor found in the outline cache, is taken as referring to all of them.
+     */
+    private boolean refersTo(File trimmedFile, Set<String> figureNames) {
+        OutlineCache.Outline outline = outlinesByTrimmedFile.get(trimmedFile);
+        if (outline == null) return true;
+        for (String name : outline.getFigureNames()) {
+            if (figureNames.contains(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Map every raw tex file to the part folder its trimmed file lies in, in the order of part folders.
+     */
+    private Map<File, File> getRawTexFolders() {
         Map<File, List<File>> rawTexMap = categorizeRawTexFiles(inputRawTexFiles);
+        Map<File, File> rawTexFolders = new LinkedHashMap<>();
         for (File folder : rawTexMap.keySet()) {
             for (File texFile : rawTexMap.get(folder)) {
-                processTexFile(folder, texFile);
+                rawTexFolders.put(texFile, folder);
             }
         }
-        // decorate trimmed files
+        return rawTexFolders;
+    }
+
+    private Map<File, List<File>> getTrimmedTexMap() {
         Map<File, List<File>> trimmedTexMap = new HashMap<>();
         for (File folder : partFolders) {
             trimmedTexMap.put(folder, getTrimmedTexFileInFolder(folder));
-            for (File trimmedFile : trimmedTexMap.get(folder)) {
-                decorateTrimmedFile(trimmedFile);
-            }
         }
-        // generate main file
+        return trimmedTexMap;
+    }
+
+    private void refreshMainFile(Map<File, List<File>> trimmedTexMap) {
+        long startNanos = System.nanoTime();
         generateMainFile(trimmedTexMap);
+        RunStatistics.Phase mainFilePhase = statistics.phase("main file");
+        mainFilePhase.stop(startNanos);
+        mainFilePhase.record(mainFile.length(), 0, 0);
+    }
+
+    private void logCompletion() {
         // output completion info in log
         log.print("All done");
-        if (warningCount != 0) {
-            log.print(" with " + warningCount + " warning(s)");
+        if (warningCount.get() != 0) {
+            log.print(Logger.LOW, " with {} warning(s)", warningCount.get());
         } else {
             log.print(" without warnings");
         }
         log.println(". ");
     }
 
+    /**
+     * Index the figure folder, the figure lookups of the decoration are answered by the index from now on.
+     */
+    void indexFigures() {
+        if (figureSnapshot == null) figureSnapshot = FigureFolderSnapshot.take(figureFolder);
+        figureCatalog = FigureCatalog.build(figureSnapshot);
+    }
+
+    /**
+     * Query the count of warnings of the last {@code process} call.
+     *
+     * @return count of warnings
+     */
+    int getWarningCount() {
+        return warningCount.get();
+    }
+
+    /**
+     * Load the manifest and the outline cache of the last run and compare the inputs shared by all files: the header
+     * file and the location of the main file. If any of them changed, the records of the last run are dropped. The
+     * figures are not compared as a whole: every file records the figures it refers to, which are compared when the
+     * file is checked, so a record saved by a checkpoint of a cancelled run is never taken for the current figures.
+     */
+    private void loadManifest() {
+        manifest = BuildManifest.load(manifestFile, log);
+        String name = manifestFile.getName();
+        int dot = name.lastIndexOf('.');
+        outlineCache = OutlineCache.load(new File(manifestFile.getAbsoluteFile().getParentFile(),
+                (dot == -1 ? name : name.substring(0, dot)) + ".outline"), log);
+        String headerHash = Digests.hashOrNull(headerFile, log);
+        String mainFilePath = mainFile.getAbsolutePath();
+        sharedInputsUnchanged = manifest.matches("header", headerHash) && manifest.matches("main", mainFilePath);
+        if (!sharedInputsUnchanged) {
+            manifest.clear();
+            if (headerHash != null) manifest.put("header", headerHash);
+            manifest.put("main", mainFilePath);
+        }
+    }
+
+    /**
+     * Save the outline cache and then the manifest, so that every file the saved manifest takes as merged has its
+     * outline saved as well.
+     */
+    private void saveManifest() {
+        if (manifest == null) return;
+        outlineCache.save(log);
+        manifest.save(log);
+    }
+
+    /**
+     * Trim and decorate a raw tex file, unless neither the raw file nor its trimmed file changed since the last run.
+     *
+     * @param folder  the corresponding folder of the trimmed file
+     * @param texFile the raw tex file
+     * @param log     logger of the current file
+     * @return the trimmed file
+     */
+    private File mergeTexFile(File folder, File texFile, Logger log) {
+        File trimmedFile = getTrimmedFile(folder, texFile);
+        if (manifest == null) {
+            int warnings = processTexFile(folder, texFile, log);
+            if (warnings > 0) warningCount.addAndGet(warnings);
+            return trimmedFile;
+        }
+        String rawKey = "raw:" + texFile.getAbsolutePath();
+        String rawHash = Digests.hashOrNull(texFile, log);
+        if (sharedInputsUnchanged && manifest.matches(rawKey, rawHash)
+                && isTrimmedFileUpToDate(trimmedFile, rawHash, log)) {
+            log.println(Logger.MEDIUM, "File: {} is not changed, skipped.", texFile);
+            return trimmedFile;
+        }
+        int warnings = processTexFile(folder, texFile, log);
+        recordTrimmedFile(trimmedFile, warnings, rawHash, log);
+        if (warnings >= 0 && rawHash != null) manifest.put(rawKey, rawHash);
+        checkpoint();
+        return trimmedFile;
+    }
+
+    /**
+     * Decorate a trimmed file left by an earlier run, unless it has not changed since it was decorated.
+     *
+     * @param trimmedFile the trimmed file
+     * @param log         logger of the current file
+     */
+    private void redecorateTrimmedFile(File trimmedFile, Logger log) {
+        if (manifest == null) {
+            int warnings = decorateTrimmedFile(trimmedFile, log);
+            if (warnings > 0) warningCount.addAndGet(warnings);
+            return;
+        }
+        if (sharedInputsUnchanged && isTrimmedFileUpToDate(trimmedFile, null, log)) {
+            log.println(Logger.MEDIUM, "File: {} is not changed, skipped.", trimmedFile);
+            return;
+        }
+        recordTrimmedFile(trimmedFile, decorateTrimmedFile(trimmedFile, log), null, log);
+        checkpoint();
+    }
+
+    /**
+     * Save the manifest and the outline cache if the last checkpoint is long enough ago, so that a crashed merge loses
+     * the records of the files merged since then only. A single thread saves at a time, the others go on.
+     */
+    private void checkpoint() {
+        long nanos = System.nanoTime();
+        long last = lastCheckpointNanos.get();
+        if (nanos - last >= CHECKPOINT_NANOS && lastCheckpointNanos.compareAndSet(last, nanos)) saveManifest();
+    }
+
+    /**
+     * Check if a trimmed file is exactly the one written by the last run, and whether the figures it refers to are
+     * the same. The figures are known from the outline of the file, a file without an outline is taken as changed.
+     * The references of the file are checked again from its outline, and their warnings are reported.
+     *
+     * @param trimmedFile the trimmed file
+     * @param sourceHash  hash of the raw file the trimmed file is made from, {@code null} if it is not made from a
+     *                    raw file in this run, the outline is kept under the hash of the trimmed file then
+     * @param log         logger of the current file
+     * @return {@code true} if the trimmed file is up to date
+     */
+    private boolean isTrimmedFileUpToDate(File trimmedFile, String sourceHash, Logger log) {
+        String path = trimmedFile.getAbsolutePath();
+        String trimmedHash = Digests.hashOrNull(trimmedFile, log);
+        if (!trimmedFile.exists() || !manifest.matches("trim:" + path, trimmedHash)) return false;
+        OutlineCache.Outline outline = outlineCache.get(sourceHash != null ? sourceHash : trimmedHash);
+        if (outline == null
+                || !manifest.matches("figures:" + path, figureCatalog.fingerprint(outline.getFigureNames()))) {
+            return false;
+        }
+        outlinesByTrimmedFile.put(trimmedFile, outline);
+        tikzLibraries.addAll(outline.getTikzLibraries());
+        DecorateContext context = new DecorateContext(trimmedFile, log);
+        for (int i = 0; i < outline.getFigureNames().size(); i++) {
+            File figure = resolveFigure(outline.getFigureNames().get(i), outline.getFigureLine(i), context);
+            if (figure != null) getFigureSize(figure, outline.getFigureNames().get(i), outline.getFigureLine(i),
+                    context);
+        }
+        warningCount.addAndGet(context.warnings);
+        return true;
+    }
+
+    /**
+     * Record the hash of a trimmed file which has just been written and the fingerprint of the figures it refers to.
+     * The outline of the file is put into the outline cache, the warnings of the file are found from it next time.
+     *
+     * @param trimmedFile the trimmed file
+     * @param warnings    count of warnings, or -1 if the file could not be written
+     * @param sourceHash  hash of the raw file the trimmed file is made from, {@code null} if it has been decorated
+     *                    from itself
+     * @param log         logger of the current file
+     */
+    private void recordTrimmedFile(File trimmedFile, int warnings, String sourceHash, Logger log) {
+        String path = trimmedFile.getAbsolutePath();
+        String trimmedHash = warnings >= 0 ? Digests.hashOrNull(trimmedFile, log) : null;
+        if (trimmedHash == null) {
+            manifest.remove("trim:" + path);
+            manifest.remove("figures:" + path);
+            return;
+        }
+        warningCount.addAndGet(warnings);
+        manifest.put("trim:" + path, trimmedHash);
+        OutlineCache.Outline outline = outlinesByTrimmedFile.get(trimmedFile);
+        if (outline != null) {
+            manifest.put("figures:" + path, figureCatalog.fingerprint(outline.getFigureNames()));
+            outlineCache.put(sourceHash != null ? sourceHash : trimmedHash, outline);
+        }
+    }
+
+    /**
+     * Apply the work to every file. If parallelism is enabled, the files are processed on a bounded pool of worker
+     * threads, the largest files are scheduled first so that no worker is left with a big file at the end. The log of
+     * each file is buffered and output as a whole when the file is done, so logs of different files do not interleave.
+     * <p>
+     * The cancellation is checked before every file, the files being processed when the merge is cancelled are
+     * finished.
+     *
+     * @param files files to process
+     * @param work  the work on a single file, which receives the file and the logger it should log to
+     * @throws CancellationException if the merge has been cancelled
+     */
+    private void forEachFile(List<File> files, BiConsumer<File, Logger> work) {
+        if (parallelism <= 1 || files.size() <= 1) {
+            for (File file : files) {
+                Cancellation.check();
+                work.accept(file, log);
+            }
+            return;
+        }
+        List<File> ordered = new ArrayList<>(files);
+        ordered.sort(Comparator.comparingLong(File::length).reversed());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, ordered.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (File file : ordered) {
+                futures.add(executor.submit(() -> {
+                    // a file which has not been started when the merge is cancelled is skipped
+                    if (Thread.currentThread().isInterrupted()) return;
+                    Logger fileLog = log.buffered();
+                    try {
+                        work.accept(file, fileLog);
+                    } finally {
+                        fileLog.flush();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.printStackTrace(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            log.println("Merge has been terminated.");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        Cancellation.check();
+    }
+
     /**
      * categorize the input tex files by their filename.
      *
@@ -102,7 +526,7 @@ class TexProcess {
      * @param string string need decorate
      * @return decorated string.
      */
-    private String decorateSection(String string) {
+    String decorateSection(String string) {
         String separator;
         switch (string.length()) {
             case 2:
@@ -135,7 +559,7 @@ class TexProcess {
      * @param path file path which may contains ending braces
      * @return the count of '}' at the end of path.
      */
-    private int countEndingBraces(String path) {
+    int countEndingBraces(String path) {
         int pos = path.length() - 1;
         int braceCount = 0;
         while (path.charAt(pos) == '}') {
@@ -145,46 +569,13 @@ class TexProcess {
         return braceCount;
     }
 
-    /**
-     * Recursively find the file with certain name in the given folder, return the result in a list of Files.
-     *
-     * @param folder   the folder is to be searched
-     * @param filename the target file name
-     * @return a list of found files
-     */
-    @SuppressWarnings("ConstantConditions")
-    private List<File> findByFileName(File folder, String filename) {
-        return findByFileName(folder, filename, true);
-    }
-
-    private boolean isLegalFolderName(File file, boolean ignoreIllegalFolders) {
-        if (ignoreIllegalFolders) {
-            return file.getName().matches("^size([\\d]+)$");
-        }
-        return true;
-    }
-
-    private List<File> findByFileName(File folder, String filename, boolean ignoreIllegalFolders) {
-        List<File> foundList = new ArrayList<>();
-        for (File file : folder.listFiles()) {
-            if (file.isDirectory() && isLegalFolderName(file, ignoreIllegalFolders)) {
-                foundList.addAll(findByFileName(file, filename, ignoreIllegalFolders));
-            } else {
-                if (file.getName().equals(filename)) {
-                    foundList.add(file);
-                }
-            }
-        }
-        return foundList;
-    }
-
     /**
      * A formula to calculate the width of figure with certain size.
      *
      * @param size size of figure
      * @return the width of figure in centimeter
      */
-    private String getWidth(int size) {
+    String getWidth(int size) {
         double width = 13.0 / 500 * size;
         return String.format("%.2f", width);
     }
@@ -219,48 +610,156 @@ class TexProcess {
     }
 
     /**
-     * Reader the content of a tex file, transfer the main part of it to the trimmed tex file.
+     * Read the content of a raw tex file, transfer the main part of it to the trimmed tex file and decorate it in a
+     * single streaming pass. Only the current line is kept in memory.
+     * The {@code title} line becomes the chapter line, which is followed by the input of header file. Every line
+     * after {@code maketitle} is decorated as described in {@code decorateTrimmedFile}. A chapter line which appears
+     * after the content is kept in memory, and moved to the beginning of the file with the leading chapter lines when
+     * the pass is done. The trimmed file is written to a temporary file first and replaces the previous one when it is
+     * complete.
      *
      * @param folder  the corresponding folder of the trimmed file
      * @param texFile the raw tex file.
+     * @param log     logger of the current file
+     * @return count of warnings in the file, or -1 if the trimmed file could not be written
      */
-    private void processTexFile(File folder, File texFile) {
+    private int processTexFile(File folder, File texFile, Logger log) {
         BufferedReader reader = null;
         BufferedWriter writer = null;
-        String texFileName = texFile.getName();
-        String trimmedFileName = texFileName.substring(0, texFileName.length() - 4).replace(' ', '_') + "-trim.tex";
-        File trimmedFile = new File(folder.getPath() + File.separator + trimmedFileName);
+        File trimmedFile = getTrimmedFile(folder, texFile);
+        DecorateContext context = new DecorateContext(trimmedFile, log);
+        File tempFile = AtomicFiles.tempFileFor(trimmedFile);
+        boolean completed = false;
         try {
             reader = new BufferedReader(new InputStreamReader(new FileInputStream(texFile), "UTF-8"));
-            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(trimmedFile), "UTF-8"));
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
             String line;
-            try {
-                boolean flag = false;
-                boolean titled = false;
-                while ((line = reader.readLine()) != null) {
-                    // process tikz library inputting
-                    Matcher tikzlibraryMatcher = tikzlibararyPattern.matcher(line.trim());
-                    boolean isTikzFound = tikzlibraryMatcher.find();
-                    if (isTikzFound) {
-                        String libraries = tikzlibraryMatcher.group(1);
-                        for (String library : libraries.split(",")) {
-                            tikzLibraries.add(library.trim());
-                        }
-                    }
-                    if (!titled && line.trim().startsWith("\\title")) {
-                        titled = true;
-                        writer.write(line.trim().replaceFirst("title", "chapter"));
-                        writer.newLine();
-                    }
-                    if (flag && !line.trim().startsWith("\\end{document}") && !isTikzFound) {
-                        writer.write(line);
-                        writer.newLine();
-                    }
-                    if (line.trim().startsWith("\\maketitle")) flag = true;
+            boolean flag = false;
+            boolean titled = false;
+            // line number in the trimmed content, which is reported in warnings
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                TexLineKind kind = TexLineKind.classify(line);
+                // process tikz library inputting
+                if (kind == TexLineKind.USETIKZLIBRARY && collectTikzLibraries(line.trim(), context)) continue;
+                if (!titled && kind == TexLineKind.TITLE) {
+                    titled = true;
+                    String chapterLine = line.trim().replaceFirst("title", "chapter");
+                    writeDecoratedLine(writer, chapterLine, TexLineKind.classify(chapterLine), ++lineNumber,
+                            context);
+                }
+                if (flag && kind != TexLineKind.END_DOCUMENT) {
+                    writeDecoratedLine(writer, line, kind, ++lineNumber, context);
+                }
+                if (kind == TexLineKind.MAKETITLE) flag = true;
+            }
+            writer.close();
+            writer = null;
+            completed = context.lateChapters == null || hoistLateChapters(tempFile, context, log);
+        } catch (IOException e) {
+            log.printStackTrace(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.printStackTrace(e);
                 }
-            } catch (IOException e) {
-                log.printStackTrace(e);
             }
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    completed = false;
+                    log.printStackTrace(e);
+                }
+            }
+        }
+        statistics.phase("merge").record(texFile.length(), context.figureLookups, context.warnings);
+        if (!commitTempFile(tempFile, trimmedFile, completed, log)) return -1;
+        outlinesByTrimmedFile.put(trimmedFile, context.toOutline());
+        return context.warnings;
+    }
+
+    /**
+     * Get the trimmed file which a raw tex file is transferred to.
+     *
+     * @param folder  the corresponding folder of the trimmed file
+     * @param texFile the raw tex file
+     * @return the trimmed file
+     */
+    private File getTrimmedFile(File folder, File texFile) {
+        String texFileName = texFile.getName();
+        String trimmedFileName = texFileName.substring(0, texFileName.length() - 4).replace(' ', '_') + "-trim.tex";
+        return new File(folder.getPath() + File.separator + trimmedFileName);
+    }
+
+    /**
+     * Decorate a line of the trimmed content and write it out. A chapter line is followed by the input of header
+     * file, the lines which input other files or tikz libraries are dropped.
+     *
+     * @param writer      writer of the trimmed file
+     * @param line        the line to decorate
+     * @param kind        kind of the line
+     * @param lineNumber  line number in the trimmed file
+     * @param context     the file being decorated
+     * @throws IOException if the line can not be written
+     */
+    void writeDecoratedLine(BufferedWriter writer, String line, TexLineKind kind, int lineNumber,
+                            DecorateContext context) throws IOException {
+        ChapterLine chapterLine = kind == TexLineKind.CHAPTER ? ChapterLine.parse(line) : null;
+        if (chapterLine != null) {
+            String decorated = decorateChapterLine(chapterLine, lineNumber, context);
+            if (!context.contentWritten) {
+                writer.write(decorated);
+                writer.write("\n");
+                writer.write(headerInput);
+                context.leadingChapters++;
+            } else {
+                if (context.lateChapters == null) context.lateChapters = new StringBuilder();
+                context.lateChapters.append(decorated).append("\n").append(headerInput);
+            }
+        } else {
+            String decorated = decorateContentLine(line, kind, lineNumber, context);
+            if (decorated != null) {
+                writer.write(decorated);
+                writer.write("\n");
+                context.contentWritten = true;
+            }
+        }
+    }
+
+    /**
+     * Move the chapter lines which appeared after the content to the end of the leading chapter lines, so that all the
+     * chapter lines are at the beginning of the file as {@code decorateTrimmedFile} puts them.
+     *
+     * @param tempFile the decorated file
+     * @param context  the file being decorated
+     * @param log      logger of the current file
+     * @return {@code true} if the chapter lines have been moved
+     */
+    private boolean hoistLateChapters(File tempFile, DecorateContext context, Logger log) {
+        File hoistedFile = AtomicFiles.tempFileFor(tempFile);
+        Reader reader = null;
+        Writer writer = null;
+        boolean completed = false;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(tempFile), "UTF-8"));
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(hoistedFile), "UTF-8"));
+            // every leading chapter line is followed by the input of header file
+            int newlines = 2 * context.leadingChapters;
+            int c;
+            while (newlines > 0 && (c = reader.read()) != -1) {
+                writer.write(c);
+                if (c == '\n') newlines--;
+            }
+            writer.write(context.lateChapters.toString());
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                writer.write(buffer, 0, count);
+            }
+            completed = true;
         } catch (IOException e) {
             log.printStackTrace(e);
         } finally {
@@ -275,143 +774,68 @@ class TexProcess {
                 try {
                     writer.close();
                 } catch (IOException e) {
+                    completed = false;
                     log.printStackTrace(e);
                 }
             }
         }
+        return commitTempFile(hoistedFile, tempFile, completed, log);
     }
 
     /**
-     * Tweak the trimmed tex file content.
-     * First tweak the chapter title, remove the illegal characters.
+     * Tweak the content of a trimmed tex file of an earlier run.
+     * First tweak the chapter title, remove the illegal characters. The chapter lines are moved to the beginning of
+     * the file, followed by the input of header file.
      * Second tweak the section and subsection title (if needed), adding separator between every pair of adjacent characters.
      * Third tweak the {@code includegraphics} line. Ensure the existence of the figure intended to include,
      * calculate and correct the width of the figure. Print warnings if the figure file does not exist or the
      * figure file duplicates.
+     * The file is read twice, first for the chapter lines then for the rest, so that only the chapter lines are kept
+     * in memory.
      *
      * @param trimmedFile current file
+     * @param log         logger of the current file
+     * @return count of warnings in the file, or -1 if the file could not be rewritten
      */
-    private void decorateTrimmedFile(File trimmedFile) {
+    private int decorateTrimmedFile(File trimmedFile, Logger log) {
         BufferedReader reader = null;
         BufferedWriter writer = null;
-        StringBuilder content = new StringBuilder();
-        StringBuilder chapterInfo = new StringBuilder();
+        DecorateContext context = new DecorateContext(trimmedFile, log);
+        File tempFile = AtomicFiles.tempFileFor(trimmedFile);
+        boolean completed = false;
         try {
+            // collect the chapter lines
+            StringBuilder chapterInfo = new StringBuilder();
             reader = new BufferedReader(new InputStreamReader(new FileInputStream(trimmedFile), "UTF-8"));
             String line;
-            try {
-                int lineNumber = 1;
-                while ((line = reader.readLine()) != null) {
-                    // decorate the chapter line
-                    Matcher chapterMatcher = chapterPattern.matcher(line);
-                    if (chapterMatcher.find()) {
-                        String title = chapterMatcher.group(2);
-                        String newTitle = null;
-                        int idx = title.lastIndexOf("\\,");
-                        if (idx != -1) {
-                            newTitle = title.substring(idx + 2);
-                        } else {
-                            idx = title.lastIndexOf("—");
-                            if (idx != -1) {
-                                newTitle = title.substring(idx + 1);
-                            }
-                        }
-                        if (newTitle != null) {
-                            newTitle = newTitle.trim();
-                            StringBuilder newChapterSB = new StringBuilder();
-                            newChapterSB.append(chapterMatcher.group(1));
-                            if (newTitle.contains("\\\\")) {
-                                newChapterSB.append("[").append(newTitle.replace("\\\\", "")).append("]");
-                            }
-                            newChapterSB.append("{").append(newTitle).append("}");
-                            line = newChapterSB.toString();
-                        } else {
-                            log.println("INFO--title error (ignore this if title exists) at line " + lineNumber
-                                    + " of file " + trimmedFile.getPath(), Logger.MEDIUM);
-                        }
-                        chapterInfo.append(line).append("\n").append("\\input{")
-                                .append(modifyPath(headerFile.getAbsolutePath())).append("}\n");
-                    } else {
-                        // decorate section title
-                        Matcher sectionMatcher = sectionPattern.matcher(line);
-                        if (sectionMatcher.find()) {
-                            line = sectionMatcher.group(1) + "{" + decorateSection(sectionMatcher.group(2)) + "}"
-                                    + sectionMatcher.group(3);
-                        }
-                        // decorate subsection title
-                        Matcher subsectionMatcher = subsectionPattern.matcher(line);
-                        if (subsectionMatcher.find()) {
-                            line = subsectionMatcher.group(1) + "{" + decorateSection(subsectionMatcher.group(2)) + "}"
-                                    + subsectionMatcher.group(3);
-                        }
-                        // extract the figure filename and its width or height
-                        Matcher filenameMatcher = filenamePattern.matcher(line);
-                        if (filenameMatcher.find()) {
-                            String picFilePath = filenameMatcher.group(5);
-                            String postfix = filenameMatcher.group(6);
-                            int braceCount = countEndingBraces(picFilePath);
-                            if (braceCount != 0) {
-                                postfix = picFilePath.substring(picFilePath.length() - braceCount) + postfix;
-                                picFilePath = picFilePath.substring(0, picFilePath.length() - braceCount);
-                            }
-                            File picFile = new File(picFilePath);
-                            List<File> picList = findByFileName(figureFolder, picFile.getName());
-                            if (picList.size() != 1) {
-                                if (picList.isEmpty())
-                                    log.println(
-                                            "WARNING--picture file not found: " + picFile.getName()
-                                                    + " at line " + lineNumber + " of file " + trimmedFile.getPath());
-                                else {
-                                    log.println("WARNING--duplicated picture file: " + picFile.getName()
-                                            + " at line " + lineNumber + " of file " + trimmedFile.getPath());
-                                }
-                                warningCount++;
-                            } else {
-                                StringBuilder newline = new StringBuilder();
-                                File newPicFile = picList.get(0);
-                                String newFilePath = modifyPath(newPicFile.getAbsolutePath());
-                                String newSize;
-                                Matcher sizeMatcher = sizePattern.matcher(newFilePath);
-                                // get the size information for the picture file
-                                if (sizeMatcher.find()) {
-                                    // this file has size info
-                                    newSize = getWidth(Integer.valueOf(sizeMatcher.group(1))) + "cm";
-                                } else {
-                                    // this file does not have size info
-                                    if (!newFilePath.matches("tikz")) {
-                                        log.println("WARNING--picture file: " + picFile.getName()
-                                                + " does not have size info at line " + lineNumber
-                                                + " of file " + trimmedFile.getPath());
-                                        warningCount++;
-                                    }
-                                    newSize = filenameMatcher.group(3);
-                                }
-                                newline.append(filenameMatcher.group(1)).append(newSize).append(filenameMatcher.group(4))
-                                        .append(newFilePath).append(postfix);
-                                line = newline.toString();
-                            }
-                        }
-                        // process tikz library inputting
-                        Matcher tikzlibraryMatcher = tikzlibararyPattern.matcher(line.trim());
-                        boolean isTikzFound = tikzlibraryMatcher.find();
-                        if (isTikzFound) {
-                            String libraries = tikzlibraryMatcher.group(1);
-                            for (String library : libraries.split(",")) {
-                                tikzLibraries.add(library.trim());
-                            }
-                        }
-                        if (!line.trim().startsWith("\\input") && !isTikzFound) {
-                            content.append(line).append("\n");
-                        }
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                ChapterLine chapterLine = TexLineKind.classify(line) == TexLineKind.CHAPTER
+                        ? ChapterLine.parse(line) : null;
+                if (chapterLine != null) {
+                    chapterInfo.append(decorateChapterLine(chapterLine, lineNumber, context))
+                            .append("\n").append(headerInput);
+                }
+                lineNumber++;
+            }
+            reader.close();
+            // write the chapter lines and then the decorated content
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(trimmedFile), "UTF-8"));
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            writer.write(chapterInfo.toString());
+            lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                TexLineKind kind = TexLineKind.classify(line);
+                if (kind != TexLineKind.CHAPTER || ChapterLine.parse(line) == null) {
+                    String decorated = decorateContentLine(line, kind, lineNumber, context);
+                    if (decorated != null) {
+                        writer.write(decorated);
+                        writer.write("\n");
                     }
-                    lineNumber++;
                 }
-            } catch (IOException e) {
-                log.printStackTrace(e);
+                lineNumber++;
             }
-            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(trimmedFile), "UTF-8"));
-            content = chapterInfo.append(content);
-            writer.write(content.toString());
+            completed = true;
         } catch (IOException e) {
             log.printStackTrace(e);
         } finally {
@@ -426,28 +850,243 @@ class TexProcess {
                 try {
                     writer.close();
                 } catch (IOException e) {
+                    completed = false;
                     log.printStackTrace(e);
                 }
             }
         }
+        statistics.phase("redecorate").record(trimmedFile.length(), context.figureLookups, context.warnings);
+        if (!commitTempFile(tempFile, trimmedFile, completed, log)) return -1;
+        outlinesByTrimmedFile.put(trimmedFile, context.toOutline());
+        return context.warnings;
+    }
+
+    /**
+     * Replace the target file with the temporary file if the content has been completely written, otherwise discard
+     * the temporary file and leave the target as it was.
+     *
+     * @param tempFile  the temporary file
+     * @param target    the target file
+     * @param completed whether the temporary file is complete
+     * @param log       logger of the current file
+     * @return {@code true} if the target file has been replaced
+     */
+    private boolean commitTempFile(File tempFile, File target, boolean completed, Logger log) {
+        if (completed) {
+            try {
+                AtomicFiles.replace(tempFile, target);
+                return true;
+            } catch (IOException e) {
+                log.printStackTrace(e);
+            }
+        }
+        AtomicFiles.discard(tempFile);
+        return false;
+    }
+
+    /**
+     * Tweak the chapter title, remove the illegal characters.
+     *
+     * @param chapterLine the parsed chapter line
+     * @param lineNumber  line number in the trimmed file
+     * @param context     the file being decorated
+     * @return the decorated chapter line
+     */
+    private String decorateChapterLine(ChapterLine chapterLine, int lineNumber, DecorateContext context) {
+        String title = chapterLine.title;
+        String newTitle = null;
+        int idx = title.lastIndexOf("\\,");
+        if (idx != -1) {
+            newTitle = title.substring(idx + 2);
+        } else {
+            idx = title.lastIndexOf("—");
+            if (idx != -1) {
+                newTitle = title.substring(idx + 1);
+            }
+        }
+        if (newTitle == null) {
+            if (Logger.isEnabled(Logger.MEDIUM)) {
+                context.log.println(Logger.MEDIUM,
+                        "INFO--title error (ignore this if title exists) at line {} of file {}", lineNumber,
+                        context.trimmedFile);
+            }
+            return chapterLine.text;
+        }
+        newTitle = newTitle.trim();
+        StringBuilder newChapterSB = new StringBuilder();
+        newChapterSB.append(chapterLine.command);
+        if (newTitle.contains("\\\\")) {
+            newChapterSB.append("[").append(newTitle.replace("\\\\", "")).append("]");
+        }
+        newChapterSB.append("{").append(newTitle).append("}");
+        return newChapterSB.toString();
+    }
+
+    /**
+     * Tweak a line which is not a chapter line: the section and subsection titles and the {@code includegraphics}
+     * lines. The tikz libraries are collected. Only the rule of the kind of the line is tried, the others could not
+     * match the line anyway.
+     *
+     * @param line        the line to decorate
+     * @param kind        kind of the line
+     * @param lineNumber  line number in the trimmed file
+     * @param context     the file being decorated
+     * @return the decorated line, or {@code null} if the line inputs another file or tikz libraries and should be
+     * dropped
+     */
+    String decorateContentLine(String line, TexLineKind kind, int lineNumber, DecorateContext context) {
+        switch (kind) {
+            case SECTION:
+                // decorate section title
+                return decorateSectionLine(sectionPattern.matcher(line), line);
+            case SUBSECTION:
+                // decorate subsection title
+                return decorateSectionLine(subsectionPattern.matcher(line), line);
+            case INCLUDEGRAPHICS:
+                // extract the figure filename and its width or height
+                Matcher filenameMatcher = filenamePattern.matcher(line);
+                return filenameMatcher.find() ? decorateFigureLine(filenameMatcher, line, lineNumber, context) : line;
+            case USETIKZLIBRARY:
+                // process tikz library inputting
+                return collectTikzLibraries(line.trim(), context) ? null : line;
+            case INPUT:
+                return null;
+            default:
+                return line;
+        }
+    }
+
+    /**
+     * Add separators to the title of a section or subsection line.
+     *
+     * @param sectionMatcher matcher of {@code sectionPattern} or {@code subsectionPattern} on the line
+     * @param line           the line to decorate
+     * @return the decorated line, or the line itself if the matcher does not match
+     */
+    private String decorateSectionLine(Matcher sectionMatcher, String line) {
+        if (!sectionMatcher.find()) return line;
+        return sectionMatcher.group(1) + "{" + decorateSection(sectionMatcher.group(2)) + "}" + sectionMatcher.group(3);
+    }
+
+    /**
+     * Resolve the figure of an {@code includegraphics} line in the figure catalog, correct its path and its width
+     * according to the size of the figure.
+     *
+     * @param filenameMatcher matcher of {@code filenamePattern} which has found the line
+     * @param line            the line to decorate
+     * @param lineNumber      line number in the trimmed file
+     * @param context     the file being decorated
+     * @return the decorated line, or the line itself if the figure can not be resolved
+     */
+    private String decorateFigureLine(Matcher filenameMatcher, String line, int lineNumber, DecorateContext context) {
+        String picFilePath = filenameMatcher.group(5);
+        String postfix = filenameMatcher.group(6);
+        int braceCount = countEndingBraces(picFilePath);
+        if (braceCount != 0) {
+            postfix = picFilePath.substring(picFilePath.length() - braceCount) + postfix;
+            picFilePath = picFilePath.substring(0, picFilePath.length() - braceCount);
+        }
+        File picFile = new File(picFilePath);
+        context.figureLookups++;
+        context.figureNames.add(picFile.getName());
+        context.figureLines.add(lineNumber);
+        File newPicFile = resolveFigure(picFile.getName(), lineNumber, context);
+        if (newPicFile == null) return line;
+        StringBuilder newline = new StringBuilder();
+        String newFilePath = modifyPath(newPicFile.getAbsolutePath());
+        String newSize;
+        Integer size = getFigureSize(newPicFile, picFile.getName(), lineNumber, context);
+        // get the size information for the picture file
+        if (size != null) {
+            // this file has size info
+            newSize = getWidth(size) + "cm";
+        } else {
+            // this file does not have size info
+            newSize = filenameMatcher.group(3);
+        }
+        newline.append(filenameMatcher.group(1)).append(newSize).append(filenameMatcher.group(4))
+                .append(newFilePath).append(postfix);
+        return newline.toString();
+    }
+
+    /**
+     * Find the only figure of a name in the figure catalog, a warning is reported if there is none or more than one.
+     *
+     * @param name       name of the figure
+     * @param lineNumber line number of the reference in the trimmed file
+     * @param context    the file being decorated
+     * @return the figure, or {@code null} if it can not be resolved
+     */
+    private File resolveFigure(String name, int lineNumber, DecorateContext context) {
+        List<File> picList = figureCatalog.findByFileName(name);
+        if (picList.size() != 1) {
+            if (picList.isEmpty())
+                context.log.println(Logger.LOW, "WARNING--picture file not found: {} at line {} of file {}",
+                        name, lineNumber, context.trimmedFile);
+            else {
+                context.log.println(Logger.LOW, "WARNING--duplicated picture file: {} at line {} of file {}",
+                        name, lineNumber, context.trimmedFile);
+            }
+            context.warnings++;
+            return null;
+        }
+        return picList.get(0);
+    }
+
+    /**
+     * Get the size of a resolved figure, from the catalog or from the path of the figure. A warning is reported if
+     * the figure does not have size info.
+     *
+     * @param figure     the figure resolved by {@link #resolveFigure}
+     * @param name       name of the figure in the reference
+     * @param lineNumber line number of the reference in the trimmed file
+     * @param context    the file being decorated
+     * @return the size, or {@code null} if the figure does not have size info
+     */
+    private Integer getFigureSize(File figure, String name, int lineNumber, DecorateContext context) {
+        Integer size = figureCatalog.getSize(figure);
+        String newFilePath = modifyPath(figure.getAbsolutePath());
+        if (size == null) {
+            Matcher sizeMatcher = sizePattern.matcher(newFilePath);
+            if (sizeMatcher.find()) size = Integer.valueOf(sizeMatcher.group(1));
+        }
+        if (size == null && !newFilePath.matches("tikz")) {
+            context.log.println(Logger.LOW, "WARNING--picture file: {} does not have size info at line {} of file {}",
+                    name, lineNumber, context.trimmedFile);
+            context.warnings++;
+        }
+        return size;
+    }
+
+    /**
+     * Collect the libraries if the line inputs tikz libraries.
+     *
+     * @param trimmedLine a line without leading and trailing white spaces
+     * @param context     the file being decorated
+     * @return {@code true} if the line inputs tikz libraries
+     */
+    private boolean collectTikzLibraries(String trimmedLine, DecorateContext context) {
+        Matcher tikzlibraryMatcher = tikzlibararyPattern.matcher(trimmedLine);
+        if (!tikzlibraryMatcher.find()) return false;
+        String libraries = tikzlibraryMatcher.group(1);
+        for (String library : libraries.split(",")) {
+            tikzLibraries.add(library.trim());
+            context.tikzLibraries.add(library.trim());
+        }
+        return true;
     }
 
     /**
      * Generate the main tex file using the map of part name and the corresponding list of tex files.
      * Inject the file names into the main file at certain position.
+     * The main file is copied line by line to a temporary file, the {@code input} lines are written after the line
+     * {@code %!!!ContentStart} and the old content is skipped until the line {@code %!!!ContentEnd}. The main file
+     * is replaced by the temporary file only when it is completely written, so an interrupted run never leaves a
+     * broken main file.
      *
      * @param trimmedTexMap trimmed files stored in a map by the folder it lies.
      */
     private void generateMainFile(Map<File, List<File>> trimmedTexMap) {
-        // get the contents that is to injected
-        StringBuilder injectContent = new StringBuilder();
-        for (File folder : partFolders) {
-            for (File trimmedTexFile : trimmedTexMap.get(folder)) {
-                injectContent.append("\\input{").append(modifyPath(trimmedTexFile.getAbsolutePath()))
-                        .append("}\n");
-                log.println("File: " + trimmedTexFile.getPath() + " injected into main file.", Logger.HIGH);
-            }
-        }
         // get all the tikz libraries that will be used in sub-files
         StringBuilder usetikzlibrary = new StringBuilder();
 //        if (!tikzLibraries.isEmpty()) {
@@ -456,34 +1095,35 @@ class TexProcess {
 //        } // do not need this any more
         BufferedReader reader = null;
         BufferedWriter writer = null;
-        StringBuilder content = new StringBuilder();
+        File tempFile = AtomicFiles.tempFileFor(mainFile);
+        boolean completed = false;
         try {
             reader = new BufferedReader(new InputStreamReader(new FileInputStream(mainFile), "UTF-8"));
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
             String line;
-            try {
-                boolean injectionFlag = true;
-                while ((line = reader.readLine()) != null) {
-                    if (line.trim().startsWith("%!!!ContentEnd")) {
-                        injectionFlag = true;
-                    }
-                    if (injectionFlag) { // other content in main file goes here
-                        Matcher tikzLibraryMatcher = tikzlibararyPattern.matcher(line.trim());
-                        if (!tikzLibraryMatcher.find())
-                            content.append(line).append("\n"); // ignore the line "\\usetikzlibrary"
-                        if (line.trim().startsWith("\\begin{document}")) {
-                            content.append(usetikzlibrary).append("\n");
-                        }
+            boolean injectionFlag = true;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().startsWith("%!!!ContentEnd")) {
+                    injectionFlag = true;
+                }
+                if (injectionFlag) { // other content in main file goes here
+                    Matcher tikzLibraryMatcher = tikzlibararyPattern.matcher(line.trim());
+                    if (!tikzLibraryMatcher.find()) {
+                        writer.write(line); // ignore the line "\\usetikzlibrary"
+                        writer.write("\n");
                     }
-                    if (line.trim().startsWith("%!!!ContentStart")) {
-                        content.append(injectContent);
-                        injectionFlag = false;
+                    // nothing is written if there is no library, otherwise every run would add an empty line
+                    if (line.trim().startsWith("\\begin{document}") && usetikzlibrary.length() > 0) {
+                        writer.write(usetikzlibrary.toString());
+                        writer.write("\n");
                     }
                 }
-            } catch (IOException e) {
-                log.printStackTrace(e);
+                if (line.trim().startsWith("%!!!ContentStart")) {
+                    writeInputLines(writer, trimmedTexMap);
+                    injectionFlag = false;
+                }
             }
-            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mainFile), "UTF-8"));
-            writer.write(content.toString());
+            completed = true;
         } catch (IOException e1) {
             log.printStackTrace(e1);
         } finally {
@@ -498,10 +1138,30 @@ class TexProcess {
                 try {
                     writer.close();
                 } catch (IOException e1) {
+                    completed = false;
                     log.printStackTrace(e1);
                 }
             }
         }
+        commitTempFile(tempFile, mainFile, completed, log);
+    }
+
+    /**
+     * Write the {@code input} line of every trimmed file, in the order of part folders.
+     *
+     * @param writer        writer of the main file
+     * @param trimmedTexMap trimmed files stored in a map by the folder it lies.
+     * @throws IOException if the lines can not be written
+     */
+    private void writeInputLines(BufferedWriter writer, Map<File, List<File>> trimmedTexMap) throws IOException {
+        for (File folder : partFolders) {
+            for (File trimmedTexFile : trimmedTexMap.get(folder)) {
+                writer.write("\\input{");
+                writer.write(modifyPath(trimmedTexFile.getAbsolutePath()));
+                writer.write("}\n");
+                log.println(Logger.HIGH, "File: {} injected into main file.", trimmedTexFile);
+            }
+        }
     }
 
     /**
@@ -512,8 +1172,103 @@ class TexProcess {
      * @return the relative path to the position of the main file (which is guaranteed that will not contains any
      * spaces).
      */
-    private String modifyPath(String path) {
+    String modifyPath(String path) {
         String pathPrefix = mainFile.getAbsolutePath().replace(mainFile.getName(), "");
         return path.replace(pathPrefix, "./").replace(" ", "_").replace("\\", "/");
     }
+
+    /**
+     * A chapter line split into its parts. The line is parsed by hand as the pattern
+     * {@code ^(\s*\\chapter)\{([\s\S]+)\}(\s*)$} would do, which backtracks a lot on long lines.
+     */
+    private static final class ChapterLine {
+        private final String command;
+        private final String title;
+        private final String text;
+
+        private ChapterLine(String command, String title, String text) {
+            this.command = command;
+            this.title = title;
+            this.text = text;
+        }
+
+        /**
+         * Parse a line of kind {@code CHAPTER}.
+         *
+         * @param line the line
+         * @return the parsed line, or {@code null} if it is not a chapter line
+         */
+        private static ChapterLine parse(String line) {
+            int start = 0;
+            while (isSpace(line.charAt(start))) {
+                start++;
+            }
+            if (!line.startsWith("\\chapter{", start)) return null;
+            int titleStart = start + "\\chapter{".length();
+            // '$' matches at the end of the line, or before a line terminator at the end
+            int end = line.length();
+            int titleEnd = findTitleEnd(line, titleStart, end);
+            if (titleEnd == -1 && end > 0 && isLineTerminator(line.charAt(end - 1))) {
+                end--;
+                titleEnd = findTitleEnd(line, titleStart, end);
+            }
+            if (titleEnd == -1) return null;
+            return new ChapterLine(line.substring(0, titleStart - 1), line.substring(titleStart, titleEnd),
+                    line.substring(0, end));
+        }
+
+        /**
+         * Find the closing brace of the title, which is the last character before the end other than spaces.
+         *
+         * @return index of the closing brace, or -1 if there is no such brace or the title is empty
+         */
+        private static int findTitleEnd(String line, int titleStart, int end) {
+            int index = end - 1;
+            while (index > titleStart && isSpace(line.charAt(index))) {
+                index--;
+            }
+            return index > titleStart && line.charAt(index) == '}' ? index : -1;
+        }
+
+        /**
+         * Whether the character is matched by {@code \s} of the regular expressions.
+         */
+        private static boolean isSpace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+        }
+
+        private static boolean isLineTerminator(char c) {
+            return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+    }
+
+    /**
+     * The state of a trimmed file while it is being decorated.
+     */
+    static final class DecorateContext {
+        private final File trimmedFile;
+        private final Logger log;
+        private int warnings = 0;
+        private int figureLookups = 0;
+        private int leadingChapters = 0;
+        private boolean contentWritten = false;
+        private StringBuilder lateChapters = null;
+        // the figure references, in the order of the lines
+        private final List<String> figureNames = new ArrayList<>();
+        private final List<Integer> figureLines = new ArrayList<>();
+        private final Set<String> tikzLibraries = new LinkedHashSet<>();
+
+        DecorateContext(File trimmedFile, Logger log) {
+            this.trimmedFile = trimmedFile;
+            this.log = log;
+        }
+
+        private OutlineCache.Outline toOutline() {
+            int[] lines = new int[figureLines.size()];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = figureLines.get(i);
+            }
+            return new OutlineCache.Outline(figureNames, lines, new ArrayList<>(tikzLibraries));
+        }
+    }
 }